@@ -0,0 +1,87 @@
+package bench.executor;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import tomcat.minitomcat.server.WorkerExecutors;
+
+
+/**
+ * Compares the worker executor strategies under blocking handlers: every task sleeps for a fixed
+ * time, the way a servlet-style handler blocks on a database or downstream call.
+ *
+ * <p>Usage: {@code WorkerExecutorBenchmark [tasks] [blockMs] [maxWorkers] [queueSize]}
+ * (defaults: 2000 tasks, 20 ms, 10 workers, 1000 queued).
+ */
+public class WorkerExecutorBenchmark {
+
+  public static void main(String[] args) throws InterruptedException {
+    int tasks = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+    long blockMs = args.length > 1 ? Long.parseLong(args[1]) : 20;
+    int maxWorkers = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+    int queueSize = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+
+    System.out.printf("%d tasks blocking %d ms each, maxWorkers=%d, queueSize=%d%n",
+        tasks, blockMs, maxWorkers, queueSize);
+    System.out.printf("%-10s %10s %12s %10s %10s %10s%n",
+        "executor", "wall ms", "tasks/s", "p50 ms", "p99 ms", "rejected");
+    for (WorkerExecutors.Type type : WorkerExecutors.Type.values()) {
+      run(type, tasks, blockMs, maxWorkers, queueSize);
+    }
+  }
+
+  private static void run(WorkerExecutors.Type type, int tasks, long blockMs, int maxWorkers,
+      int queueSize) throws InterruptedException {
+    ExecutorService executor = WorkerExecutors.create(type, maxWorkers, queueSize);
+    long[] latencies = new long[tasks];
+    AtomicInteger completed = new AtomicInteger();
+    AtomicInteger rejected = new AtomicInteger();
+    CountDownLatch done = new CountDownLatch(tasks);
+
+    long start = System.nanoTime();
+    for (int i = 0; i < tasks; i++) {
+      long submitted = System.nanoTime();
+      try {
+        executor.execute(() -> {
+          try {
+            Thread.sleep(blockMs);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          latencies[completed.getAndIncrement()] = System.nanoTime() - submitted;
+          done.countDown();
+        });
+      } catch (RejectedExecutionException e) {
+        // What the connector turns into a 503
+        rejected.incrementAndGet();
+        done.countDown();
+      }
+    }
+    done.await();
+    long wallNanos = System.nanoTime() - start;
+    executor.shutdown();
+    executor.awaitTermination(10, TimeUnit.SECONDS);
+
+    int served = completed.get();
+    long[] sorted = Arrays.copyOf(latencies, served);
+    Arrays.sort(sorted);
+    System.out.printf("%-10s %10d %12.0f %10.1f %10.1f %10d%n",
+        type,
+        TimeUnit.NANOSECONDS.toMillis(wallNanos),
+        served / (wallNanos / 1e9),
+        percentileMillis(sorted, 0.50),
+        percentileMillis(sorted, 0.99),
+        rejected.get());
+  }
+
+  private static double percentileMillis(long[] sorted, double percentile) {
+    if (sorted.length == 0) {
+      return 0;
+    }
+    int index = (int) Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length) - 1);
+    return sorted[Math.max(0, index)] / 1e6;
+  }
+}
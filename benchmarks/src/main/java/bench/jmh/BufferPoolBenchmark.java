@@ -0,0 +1,53 @@
+package bench.jmh;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import tomcat.minitomcat.server.BufferPool;
+
+
+/**
+ * A lease/release pair from the {@link BufferPool}, with and without the per-thread caches, on
+ * four threads sharing one pool like the worker executor does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class BufferPoolBenchmark {
+
+  @Param({"true", "false"})
+  public boolean threadLocalCache;
+
+  @Param({"4096", "65536"})
+  public int size;
+
+  private BufferPool pool;
+
+  @Setup
+  public void setUp() {
+    pool = new BufferPool(32L * 1024 * 1024, false, threadLocalCache);
+  }
+
+  @Benchmark
+  public int leaseAndRelease() {
+    ByteBuffer buffer = pool.lease(size);
+    int capacity = buffer.capacity();
+    pool.release(buffer);
+    return capacity;
+  }
+}
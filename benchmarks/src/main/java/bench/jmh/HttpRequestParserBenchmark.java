@@ -0,0 +1,78 @@
+package bench.jmh;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import tomcat.minitomcat.http.HttpParseException;
+import tomcat.minitomcat.http.HttpRequest;
+import tomcat.minitomcat.http.HttpRequestParser;
+
+
+/**
+ * Parses one buffered request per operation and reads what a handler typically reads from it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HttpRequestParserBenchmark {
+
+  private static final String SIMPLE = "GET /hello/world HTTP/1.1\r\nHost: localhost\r\n\r\n";
+
+  private static final String BROWSER = "GET /static/app.js?v=42 HTTP/1.1\r\n"
+      + "Host: localhost:8090\r\n"
+      + "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 Chrome/120.0 Safari/537.36\r\n"
+      + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"
+      + "Accept-Language: en-US,en;q=0.5\r\n"
+      + "Accept-Encoding: gzip, deflate, br\r\n"
+      + "Referer: http://localhost:8090/index.html\r\n"
+      + "Cookie: session=0123456789abcdef; theme=dark\r\n"
+      + "Connection: keep-alive\r\n"
+      + "Cache-Control: max-age=0\r\n\r\n";
+
+  private static final String CHUNKED = "POST /upload HTTP/1.1\r\nHost: localhost\r\n"
+      + "Transfer-Encoding: chunked\r\n\r\n"
+      + "10\r\n0123456789abcdef\r\n10\r\n0123456789abcdef\r\n0\r\n\r\n";
+
+  @Param({"simple", "browser", "chunked"})
+  public String request;
+
+  private byte[] bytes;
+  private ByteBuffer buffer;
+  private HttpRequestParser parser;
+
+  @Setup
+  public void setUp() {
+    String text = request.equals("simple") ? SIMPLE : request.equals("browser") ? BROWSER : CHUNKED;
+    bytes = text.getBytes(StandardCharsets.ISO_8859_1);
+    buffer = ByteBuffer.allocateDirect(4096);
+    parser = new HttpRequestParser(8192, 2L * 1024 * 1024);
+  }
+
+  @Benchmark
+  public long parse() throws HttpParseException {
+    buffer.put(bytes);
+    if (parser.parse(buffer) != HttpRequestParser.Result.COMPLETE) {
+      throw new IllegalStateException("Incomplete request");
+    }
+    HttpRequest parsed = parser.getRequest();
+    long result = parsed.getMethod().length() + parsed.getUri().length()
+        + (parsed.isKeepAlive() ? 1 : 0) + parsed.getBodyLength();
+    parser.recycle();
+    parser.compact(buffer);
+    return result;
+  }
+}
@@ -0,0 +1,52 @@
+package bench.jmh;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import tomcat.minitomcat.http.HttpResponse;
+
+
+/**
+ * Builds a response the way a handler does and encodes it into a direct buffer, as the worker does
+ * before queueing it on the connection.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HttpResponseBenchmark {
+
+  @Param({"13", "1024", "16384"})
+  public int bodySize;
+
+  private String body;
+  private ByteBuffer buffer;
+
+  @Setup
+  public void setUp() {
+    body = "x".repeat(bodySize);
+    buffer = ByteBuffer.allocateDirect(bodySize + 1024);
+  }
+
+  @Benchmark
+  public ByteBuffer encode() {
+    HttpResponse response = new HttpResponse().setHeader("Cache-Control", "no-cache").setBody(body);
+    String head = response.encodeHead(true);
+    buffer.clear();
+    response.encode(buffer, head, true);
+    buffer.flip();
+    return buffer;
+  }
+}
@@ -0,0 +1,69 @@
+package bench.jmh;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import tomcat.minitomcat.http.Handler;
+import tomcat.minitomcat.http.HttpParseException;
+import tomcat.minitomcat.http.HttpRequest;
+import tomcat.minitomcat.http.HttpRequestParser;
+import tomcat.minitomcat.http.Router;
+
+
+/**
+ * Route lookup over a table of a few dozen routes, for static, parameterized, wildcard and unknown
+ * paths.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RouterBenchmark {
+
+  @Param({"/api/v1/status", "/api/v1/users/42/orders/7", "/static/css/site.css", "/no/such/path"})
+  public String path;
+
+  private Router router;
+  private HttpRequest request;
+
+  @Setup
+  public void setUp() throws HttpParseException {
+    Handler ok = (request, response) -> response.setBody("ok");
+    router = new Router()
+        .get("/api/v1/status", ok)
+        .get("/static/*", ok);
+    for (String resource : new String[] {"users", "orders", "products", "carts", "invoices"}) {
+      router.get("/api/v1/" + resource, ok)
+          .post("/api/v1/" + resource, ok)
+          .get("/api/v1/" + resource + "/{id}", ok)
+          .add("PUT", "/api/v1/" + resource + "/{id}", ok)
+          .add("DELETE", "/api/v1/" + resource + "/{id}", ok);
+    }
+    router.get("/api/v1/users/{id}/orders/{orderId}", ok);
+
+    ByteBuffer buffer = ByteBuffer.allocate(1024);
+    buffer.put(("GET " + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n")
+        .getBytes(StandardCharsets.ISO_8859_1));
+    HttpRequestParser parser = new HttpRequestParser(8192, 0);
+    parser.parse(buffer);
+    request = parser.getRequest();
+  }
+
+  @Benchmark
+  public Handler route() {
+    return router.route(request);
+  }
+}
@@ -0,0 +1,374 @@
+package bench.load;
+
+import common.metrics.Counter;
+import common.metrics.LatencyHistogram;
+import common.metrics.MetricsRegistry;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.LineBasedFrameDecoder;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.EmptyHttpHeaders;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketClientHandshakerFactory;
+import io.netty.handler.codec.http.websocketx.WebSocketClientProtocolHandler;
+import io.netty.handler.codec.http.websocketx.WebSocketVersion;
+import io.netty.handler.codec.string.StringDecoder;
+import io.netty.handler.codec.string.StringEncoder;
+import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Closed-loop load generator for the example servers, running on Netty in the same JVM as the
+ * measurement so client overhead stays small and predictable.
+ *
+ * <p>Each of {@code -connections} connections keeps {@code -pipeline} requests in flight and sends
+ * the next one as soon as a response arrives. Latency is measured per request from write to
+ * response; only the {@code -duration} seconds after {@code -warmup} are reported.
+ *
+ * <ul>
+ *   <li>{@code http}, {@code file}, {@code nio}: HTTP/1.1 GETs; with {@code -keepAlive false} every
+ *   request uses a new connection (and pipelining is off).</li>
+ *   <li>{@code websocket}: text frames echoed by {@code WebSocketServer}.</li>
+ *   <li>{@code chat}: lines broadcast by {@code ChatServer}; a request completes when the sender
+ *   sees its own line come back, so the server's fan-out to every connection is included.</li>
+ * </ul>
+ *
+ * <p>Usage: {@code LoadGenerator -target http|file|websocket|chat|nio [-host localhost] [-port p]
+ * [-path /] [-connections 64] [-pipeline 1] [-keepAlive true] [-warmup 3] [-duration 10]
+ * [-threads cores]}
+ */
+public class LoadGenerator {
+
+  enum Target {
+    HTTP(8081, "/"),
+    FILE(8085, "/"),
+    NIO(8090, "/hello/bench"),
+    WEBSOCKET(8084, "/ws"),
+    CHAT(8083, null);
+
+    private final int defaultPort;
+    private final String defaultPath;
+
+    Target(int defaultPort, String defaultPath) {
+      this.defaultPort = defaultPort;
+      this.defaultPath = defaultPath;
+    }
+  }
+
+  private final Target target;
+  private final String host;
+  private final int port;
+  private final String path;
+  private final int connections;
+  private final int pipeline;
+  private final boolean keepAlive;
+  private final MetricsRegistry registry = new MetricsRegistry();
+  private final LatencyHistogram latency = registry.histogram("latency", "Request latency");
+  private final Counter completed = registry.counter("completed", "Requests completed");
+  private final Counter errors = registry.counter("errors", "Failed connections and requests");
+  private final ChannelGroup channels = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
+  private volatile boolean running = true;
+  private volatile boolean measuring;
+  private Bootstrap bootstrap;
+
+  LoadGenerator(Target target, String host, int port, String path, int connections, int pipeline,
+      boolean keepAlive) {
+    this.target = target;
+    this.host = host;
+    this.port = port;
+    this.path = path;
+    this.connections = connections;
+    this.pipeline = keepAlive ? pipeline : 1;
+    this.keepAlive = keepAlive;
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    Map<String, String> options = new HashMap<>();
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      options.put(args[i], args[i + 1]);
+    }
+    if (!options.containsKey("-target")) {
+      System.out.println("Usage: LoadGenerator -target http|file|websocket|chat|nio [-host localhost]"
+          + " [-port p] [-path /] [-connections 64] [-pipeline 1] [-keepAlive true] [-warmup 3]"
+          + " [-duration 10] [-threads cores]");
+      return;
+    }
+    Target target = Target.valueOf(options.get("-target").toUpperCase(Locale.ROOT));
+    LoadGenerator generator = new LoadGenerator(
+        target,
+        options.getOrDefault("-host", "localhost"),
+        Integer.parseInt(options.getOrDefault("-port", String.valueOf(target.defaultPort))),
+        options.getOrDefault("-path", target.defaultPath),
+        Integer.parseInt(options.getOrDefault("-connections", "64")),
+        Integer.parseInt(options.getOrDefault("-pipeline", "1")),
+        Boolean.parseBoolean(options.getOrDefault("-keepAlive", "true")));
+    generator.run(
+        Integer.parseInt(options.getOrDefault("-threads",
+            String.valueOf(Runtime.getRuntime().availableProcessors()))),
+        Long.parseLong(options.getOrDefault("-warmup", "3")),
+        Long.parseLong(options.getOrDefault("-duration", "10")));
+  }
+
+  void run(int threads, long warmupSeconds, long durationSeconds) throws InterruptedException {
+    EventLoopGroup group = new NioEventLoopGroup(threads);
+    try {
+      bootstrap = new Bootstrap()
+          .group(group)
+          .channel(NioSocketChannel.class)
+          .option(ChannelOption.TCP_NODELAY, true)
+          .handler(new ChannelInitializer<SocketChannel>() {
+            @Override
+            protected void initChannel(SocketChannel ch) {
+              initPipeline(ch.pipeline());
+            }
+          });
+      for (int i = 0; i < connections; i++) {
+        connect();
+      }
+
+      TimeUnit.SECONDS.sleep(warmupSeconds);
+      long startCompleted = completed.get();
+      long startErrors = errors.get();
+      measuring = true;
+      long start = System.nanoTime();
+      TimeUnit.SECONDS.sleep(durationSeconds);
+      measuring = false;
+      double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+      running = false;
+      report(completed.get() - startCompleted, errors.get() - startErrors, elapsedSeconds);
+      channels.close().awaitUninterruptibly();
+    } finally {
+      group.shutdownGracefully();
+    }
+  }
+
+  private void report(long requests, long failed, double elapsedSeconds) {
+    LatencyHistogram.Snapshot snapshot = latency.snapshot();
+    System.out.printf("target=%s %s:%d%s connections=%d pipeline=%d keepAlive=%s%n",
+        target, host, port, path != null ? path : "", connections, pipeline, keepAlive);
+    System.out.printf("%12s %12s %10s %10s %10s %10s%n",
+        "requests", "req/s", "errors", "p50 ms", "p99 ms", "p999 ms");
+    System.out.printf("%12d %12.0f %10d %10.3f %10.3f %10.3f%n",
+        requests, requests / elapsedSeconds, failed,
+        snapshot.getValueAtQuantile(0.50) / 1e6,
+        snapshot.getValueAtQuantile(0.99) / 1e6,
+        snapshot.getValueAtQuantile(0.999) / 1e6);
+  }
+
+  private void connect() {
+    bootstrap.connect(host, port).addListener((ChannelFuture future) -> {
+      if (future.isSuccess()) {
+        channels.add(future.channel());
+        future.channel().closeFuture().addListener(closed -> reconnect());
+      } else {
+        errors.increment();
+        if (running) {
+          // Back off a little so a server that is down is not hammered with connects
+          future.channel().eventLoop().schedule(this::connect, 100, TimeUnit.MILLISECONDS);
+        }
+      }
+    });
+  }
+
+  private void reconnect() {
+    if (running) {
+      connect();
+    }
+  }
+
+  private void initPipeline(ChannelPipeline pipeline) {
+    switch (target) {
+      case HTTP:
+      case FILE:
+      case NIO:
+        pipeline.addLast(new HttpClientCodec(), new HttpObjectAggregator(16 * 1024 * 1024),
+            new HttpLoadHandler());
+        break;
+      case WEBSOCKET:
+        URI uri = URI.create("ws://" + host + ":" + port + path);
+        pipeline.addLast(new HttpClientCodec(), new HttpObjectAggregator(65536),
+            new WebSocketClientProtocolHandler(WebSocketClientHandshakerFactory.newHandshaker(
+                uri, WebSocketVersion.V13, null, false, EmptyHttpHeaders.INSTANCE)),
+            new WebSocketLoadHandler());
+        break;
+      case CHAT:
+        pipeline.addLast(new LineBasedFrameDecoder(8192), new StringDecoder(CharsetUtil.UTF_8),
+            new StringEncoder(CharsetUtil.UTF_8), new ChatLoadHandler());
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown target " + target);
+    }
+  }
+
+  private void completed(long sentNanos) {
+    if (measuring) {
+      latency.recordSince(sentNanos);
+    }
+    completed.increment();
+  }
+
+  /**
+   * Keeps {@code pipeline} GETs in flight; responses arrive in request order.
+   */
+  private final class HttpLoadHandler extends SimpleChannelInboundHandler<FullHttpResponse> {
+    private final ArrayDeque<Long> sent = new ArrayDeque<>();
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) {
+      for (int i = 0; i < pipeline; i++) {
+        send(ctx);
+      }
+      ctx.flush();
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, FullHttpResponse response) {
+      Long sentNanos = sent.poll();
+      if (sentNanos == null || response.status().code() >= 400) {
+        errors.increment();
+      }
+      if (sentNanos != null) {
+        completed(sentNanos);
+      }
+      if (running && keepAlive) {
+        send(ctx);
+        ctx.flush();
+      } else {
+        ctx.close();
+      }
+    }
+
+    private void send(ChannelHandlerContext ctx) {
+      FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, path);
+      request.headers().set(HttpHeaderNames.HOST, host);
+      if (!keepAlive) {
+        request.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+      }
+      sent.add(System.nanoTime());
+      ctx.write(request);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+      errors.increment();
+      ctx.close();
+    }
+  }
+
+  /**
+   * Keeps {@code pipeline} text frames in flight once the handshake has completed.
+   */
+  private final class WebSocketLoadHandler extends SimpleChannelInboundHandler<TextWebSocketFrame> {
+    private final ArrayDeque<Long> sent = new ArrayDeque<>();
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object event) throws Exception {
+      if (event == WebSocketClientProtocolHandler.ClientHandshakeStateEvent.HANDSHAKE_COMPLETE) {
+        for (int i = 0; i < pipeline; i++) {
+          send(ctx);
+        }
+        ctx.flush();
+      }
+      super.userEventTriggered(ctx, event);
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, TextWebSocketFrame frame) {
+      Long sentNanos = sent.poll();
+      if (sentNanos == null) {
+        errors.increment();
+        return;
+      }
+      completed(sentNanos);
+      if (running) {
+        send(ctx);
+        ctx.flush();
+      }
+    }
+
+    private void send(ChannelHandlerContext ctx) {
+      sent.add(System.nanoTime());
+      ctx.write(new TextWebSocketFrame("ping"));
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+      errors.increment();
+      ctx.close();
+    }
+  }
+
+  /**
+   * Sends lines and waits for the server to broadcast them back. The server tags each broadcast
+   * with the sender's address, which is this channel's local address.
+   */
+  private final class ChatLoadHandler extends SimpleChannelInboundHandler<String> {
+    private final ArrayDeque<Long> sent = new ArrayDeque<>();
+    private String ownPrefix;
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) {
+      Channel channel = ctx.channel();
+      ownPrefix = "[" + channel.localAddress() + "]: ";
+      for (int i = 0; i < pipeline; i++) {
+        send(ctx);
+      }
+      ctx.flush();
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, String line) {
+      if (!line.startsWith(ownPrefix)) {
+        return; // Welcome text, joins, leaves and other clients' messages
+      }
+      Long sentNanos = sent.poll();
+      if (sentNanos == null) {
+        errors.increment();
+        return;
+      }
+      completed(sentNanos);
+      if (running) {
+        send(ctx);
+        ctx.flush();
+      }
+    }
+
+    private void send(ChannelHandlerContext ctx) {
+      sent.add(System.nanoTime());
+      ctx.write("bench message\n");
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+      errors.increment();
+      ctx.close();
+    }
+  }
+}
@@ -0,0 +1,27 @@
+package common.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Monotonic count. Increments from many threads go to striped cells, so they never contend on a
+ * single cache line; reads add up the cells.
+ */
+public final class Counter {
+  private final LongAdder value = new LongAdder();
+
+  Counter() {
+  }
+
+  public void increment() {
+    value.increment();
+  }
+
+  public void add(long amount) {
+    value.add(amount);
+  }
+
+  public long get() {
+    return value.sum();
+  }
+}
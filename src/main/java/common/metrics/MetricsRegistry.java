@@ -0,0 +1,136 @@
+package common.metrics;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+
+/**
+ * Named counters, gauges and latency histograms, rendered in the Prometheus text exposition format.
+ *
+ * <p>Metrics are created once at startup and the returned objects are kept by the code that
+ * updates them, so the hot path never looks anything up. Registration and scraping synchronize on
+ * the registry; updates never do. Histograms are exposed as Prometheus summaries in seconds, with
+ * the quantiles computed at scrape time over everything recorded since startup.
+ */
+public final class MetricsRegistry {
+  /** Content type of {@link #scrape()}'s output. */
+  public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+  private final Map<String, Family> families = new LinkedHashMap<>();
+
+  public Counter counter(String name, String help) {
+    return counter(name, null, help);
+  }
+
+  /**
+   * Register a counter; {@code labels} is the label set without braces, e.g. {@code kind="read"},
+   * or {@code null}. All samples of one name share its help text and type.
+   */
+  public synchronized Counter counter(String name, String labels, String help) {
+    Counter counter = new Counter();
+    family(name, "counter", help).samples.add(new Sample(labels, counter));
+    return counter;
+  }
+
+  public synchronized void gauge(String name, String help, LongSupplier value) {
+    family(name, "gauge", help).samples.add(new Sample(null, value));
+  }
+
+  public LatencyHistogram histogram(String name, String help) {
+    return histogram(name, null, help);
+  }
+
+  public synchronized LatencyHistogram histogram(String name, String labels, String help) {
+    LatencyHistogram histogram = new LatencyHistogram();
+    family(name, "summary", help).samples.add(new Sample(labels, histogram));
+    return histogram;
+  }
+
+  private Family family(String name, String type, String help) {
+    Family family = families.computeIfAbsent(name, key -> new Family(type, help));
+    if (!family.type.equals(type)) {
+      throw new IllegalArgumentException(name + " is already registered as a " + family.type);
+    }
+    return family;
+  }
+
+  /**
+   * Render every metric in the Prometheus text format.
+   */
+  public synchronized String scrape() {
+    StringBuilder out = new StringBuilder(4096);
+    for (Map.Entry<String, Family> entry : families.entrySet()) {
+      String name = entry.getKey();
+      Family family = entry.getValue();
+      out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+      out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+      for (Sample sample : family.samples) {
+        if (sample.metric instanceof Counter) {
+          line(out, name, sample.labels, null).append(((Counter) sample.metric).get()).append('\n');
+        } else if (sample.metric instanceof LongSupplier) {
+          line(out, name, sample.labels, null)
+              .append(((LongSupplier) sample.metric).getAsLong()).append('\n');
+        } else {
+          LatencyHistogram.Snapshot snapshot = ((LatencyHistogram) sample.metric).snapshot();
+          for (double quantile : QUANTILES) {
+            line(out, name, sample.labels, "quantile=\"" + quantile + "\"")
+                .append(seconds(snapshot.getValueAtQuantile(quantile))).append('\n');
+          }
+          line(out, name + "_sum", sample.labels, null)
+              .append(seconds(snapshot.getSumNanos())).append('\n');
+          line(out, name + "_count", sample.labels, null)
+              .append(snapshot.getCount()).append('\n');
+        }
+      }
+    }
+    return out.toString();
+  }
+
+  private static StringBuilder line(StringBuilder out, String name, String labels, String extra) {
+    out.append(name);
+    if (labels != null || extra != null) {
+      out.append('{');
+      if (labels != null) {
+        out.append(labels);
+      }
+      if (labels != null && extra != null) {
+        out.append(',');
+      }
+      if (extra != null) {
+        out.append(extra);
+      }
+      out.append('}');
+    }
+    return out.append(' ');
+  }
+
+  private static double seconds(long nanos) {
+    return nanos / 1e9;
+  }
+
+  private static final class Family {
+    private final String type;
+    private final String help;
+    private final List<Sample> samples = new ArrayList<>();
+
+    private Family(String type, String help) {
+      this.type = type;
+      this.help = help;
+    }
+  }
+
+  private static final class Sample {
+    private final String labels;
+    private final Object metric;
+
+    private Sample(String labels, Object metric) {
+      this.labels = labels;
+      this.metric = metric;
+    }
+  }
+}
@@ -0,0 +1,129 @@
+package netty.usage.chat;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.EventExecutor;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Topic fan-out for the chat server, sharded by event loop. Each shard keeps the subscriptions of the
+ * channels registered on its loop and is only touched from that loop, so it needs no locks.
+ *
+ * <p>A message is encoded once by the publisher; each shard gets a retained duplicate of it, which is
+ * one task hop per event loop rather than one per channel, and writes a duplicate to each of its
+ * subscribers. Channels written to are flushed once per loop tick, however many messages reached
+ * them in it, instead of once per message.
+ */
+final class Broadcaster {
+    private final Map<EventExecutor, Shard> shards = new IdentityHashMap<>();
+
+    Broadcaster(EventLoopGroup group) {
+        for (EventExecutor loop : group) {
+            shards.put(loop, new Shard((EventLoop) loop));
+        }
+    }
+
+    /**
+     * Start sending {@code topic} to {@code channel}. Call on the channel's event loop, as handler
+     * callbacks are.
+     */
+    void subscribe(String topic, Channel channel) {
+        shard(channel).subscribe(topic, channel);
+    }
+
+    /**
+     * Stop sending {@code topic} to {@code channel}. Call on the channel's event loop.
+     */
+    void unsubscribe(String topic, Channel channel) {
+        shard(channel).unsubscribe(topic, channel);
+    }
+
+    /**
+     * Send {@code message} to every subscriber of {@code topic}, releasing it once handed to the shards.
+     */
+    void publish(String topic, ByteBuf message) {
+        try {
+            for (Shard shard : shards.values()) {
+                ByteBuf duplicate = message.retainedDuplicate();
+                if (shard.loop.inEventLoop()) {
+                    shard.deliver(topic, duplicate);
+                    continue;
+                }
+                try {
+                    shard.loop.execute(() -> shard.deliver(topic, duplicate));
+                } catch (RejectedExecutionException e) {
+                    // Shutting down
+                    duplicate.release();
+                }
+            }
+        } finally {
+            message.release();
+        }
+    }
+
+    private Shard shard(Channel channel) {
+        return shards.get(channel.eventLoop());
+    }
+
+    private static final class Shard {
+        final EventLoop loop;
+        private final Map<String, Set<Channel>> subscribers = new HashMap<>();
+        private final Set<Channel> unflushed = new HashSet<>();
+        private final Runnable flushTask = this::flush;
+        private boolean flushScheduled;
+
+        Shard(EventLoop loop) {
+            this.loop = loop;
+        }
+
+        void subscribe(String topic, Channel channel) {
+            subscribers.computeIfAbsent(topic, t -> new LinkedHashSet<>()).add(channel);
+        }
+
+        void unsubscribe(String topic, Channel channel) {
+            Set<Channel> channels = subscribers.get(topic);
+            if (channels != null && channels.remove(channel) && channels.isEmpty()) {
+                subscribers.remove(topic);
+            }
+        }
+
+        void deliver(String topic, ByteBuf message) {
+            try {
+                Set<Channel> channels = subscribers.get(topic);
+                if (channels == null) {
+                    return;
+                }
+                for (Channel channel : channels) {
+                    if (channel.isActive()) {
+                        channel.write(message.retainedDuplicate(), channel.voidPromise());
+                        unflushed.add(channel);
+                    }
+                }
+                // Runs after the tasks already queued, so their messages go out in the same flush
+                if (!flushScheduled && !unflushed.isEmpty()) {
+                    flushScheduled = true;
+                    loop.execute(flushTask);
+                }
+            } finally {
+                message.release();
+            }
+        }
+
+        private void flush() {
+            flushScheduled = false;
+            for (Channel channel : unflushed) {
+                channel.flush();
+            }
+            unflushed.clear();
+        }
+    }
+}
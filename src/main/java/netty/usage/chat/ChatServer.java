@@ -1,52 +1,59 @@
 package netty.usage.chat;
 
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.channel.*;
-import io.netty.channel.group.ChannelGroup;
-import io.netty.channel.group.DefaultChannelGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.DelimiterBasedFrameDecoder;
 import io.netty.handler.codec.Delimiters;
 import io.netty.handler.codec.string.StringDecoder;
 import io.netty.handler.codec.string.StringEncoder;
-import io.netty.util.concurrent.GlobalEventExecutor;
+import io.netty.util.CharsetUtil;
+import netty.usage.common.ServerTransport;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
 
 /**
- * Simple Chat Server that broadcasts messages to all connected clients
+ * Simple Chat Server with rooms. Every client starts in the lobby, which gets the lines of everyone
+ * who hasn't moved elsewhere; {@code /join <room>} subscribes to another room and makes it the one
+ * lines go to, {@code /leave [room]} unsubscribes, {@code /rooms} lists the rooms joined.
  */
 public class ChatServer {
     private final int port;
-    private static final ChannelGroup channels = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
 
     public ChatServer(int port) {
         this.port = port;
     }
 
     public void start() throws Exception {
-        EventLoopGroup bossGroup = new NioEventLoopGroup(1);
-        EventLoopGroup workerGroup = new NioEventLoopGroup();
+        ServerTransport transport = ServerTransport.fromSystemProperties();
+        EventLoopGroup bossGroup = transport.newBossGroup();
+        EventLoopGroup workerGroup = transport.newWorkerGroup();
+        Broadcaster broadcaster = new Broadcaster(workerGroup);
 
         try {
-            ServerBootstrap bootstrap = new ServerBootstrap();
+            ServerBootstrap bootstrap = transport.newServerBootstrap();
             bootstrap.group(bossGroup, workerGroup)
-                    .channel(NioServerSocketChannel.class)
                     .childHandler(new ChannelInitializer<SocketChannel>() {
                         @Override
                         public void initChannel(SocketChannel ch) {
                             ch.pipeline()
                                 .addLast(new DelimiterBasedFrameDecoder(8192, Delimiters.lineDelimiter()))
-                                .addLast(new StringDecoder())
-                                .addLast(new StringEncoder())
-                                .addLast(new ChatServerHandler());
+                                .addLast(new StringDecoder(CharsetUtil.UTF_8))
+                                // Replies to one client; broadcasts arrive already encoded
+                                .addLast(new StringEncoder(CharsetUtil.UTF_8))
+                                .addLast(new ChatServerHandler(broadcaster));
                         }
                     })
                     .option(ChannelOption.SO_BACKLOG, 128)
                     .childOption(ChannelOption.SO_KEEPALIVE, true);
 
-            ChannelFuture future = bootstrap.bind(port).sync();
-            System.out.println("Chat Server started on port " + port);
+            ChannelFuture future = transport.bind(bootstrap, port);
+            System.out.println("Chat Server started on port " + port + " (" + transport + ")");
             System.out.println("Connect with: telnet localhost " + port);
 
             future.channel().closeFuture().sync();
@@ -62,30 +69,120 @@ public class ChatServer {
     }
 
     private static class ChatServerHandler extends SimpleChannelInboundHandler<String> {
+        private static final Logger logger = Logger.getLogger(ChatServer.class.getName());
+        private static final String LOBBY = "lobby";
+        private static final Pattern ROOM_NAME = Pattern.compile("[A-Za-z0-9_-]{1,32}");
+
+        private final Broadcaster broadcaster;
+        // Rooms joined, oldest first; lines go to the current one
+        private final Set<String> rooms = new LinkedHashSet<>();
+        private String room;
+
+        ChatServerHandler(Broadcaster broadcaster) {
+            this.broadcaster = broadcaster;
+        }
 
         @Override
         public void channelActive(ChannelHandlerContext ctx) {
-            System.out.println("Client connected: " + ctx.channel().remoteAddress());
-            channels.add(ctx.channel());
-            ctx.writeAndFlush("Welcome to the Netty Chat Server!\n");
-            channels.writeAndFlush("A new user has joined the chat.\n");
+            if (logger.isLoggable(Level.FINE)) {
+                logger.fine("Client connected: " + ctx.channel().remoteAddress());
+            }
+            ctx.writeAndFlush("Welcome to the Netty Chat Server!\n"
+                    + "You are in #" + LOBBY + ". Commands: /join <room>, /leave [room], /rooms\n");
+            join(ctx, LOBBY);
         }
 
         @Override
         public void channelInactive(ChannelHandlerContext ctx) {
-            System.out.println("Client disconnected: " + ctx.channel().remoteAddress());
-            channels.remove(ctx.channel());
-            channels.writeAndFlush("A user has left the chat.\n");
+            if (logger.isLoggable(Level.FINE)) {
+                logger.fine("Client disconnected: " + ctx.channel().remoteAddress());
+            }
+            for (String joined : rooms) {
+                broadcaster.unsubscribe(joined, ctx.channel());
+                publish(ctx, joined, joined.equals(LOBBY)
+                        ? "A user has left the chat.\n" : "A user has left #" + joined + ".\n");
+            }
+            rooms.clear();
         }
 
         @Override
         protected void channelRead0(ChannelHandlerContext ctx, String msg) {
+            if (msg.startsWith("/")) {
+                command(ctx, msg);
+                return;
+            }
+            if (room == null) {
+                ctx.writeAndFlush("You are not in any room. /join <room> to talk.\n");
+                return;
+            }
             String clientAddress = ctx.channel().remoteAddress().toString();
-            String broadcast = "[" + clientAddress + "]: " + msg + "\n";
-            System.out.print(broadcast);
+            String broadcast = (room.equals(LOBBY) ? "" : "#" + room + " ")
+                    + "[" + clientAddress + "]: " + msg + "\n";
+            if (logger.isLoggable(Level.FINE)) {
+                logger.fine(broadcast.substring(0, broadcast.length() - 1));
+            }
+
+            // Broadcast to everyone in the room
+            publish(ctx, room, broadcast);
+        }
+
+        private void command(ChannelHandlerContext ctx, String line) {
+            String[] parts = line.trim().split("\\s+", 2);
+            String argument = parts.length > 1 ? parts[1] : null;
+            switch (parts[0]) {
+                case "/join":
+                    if (argument == null || !ROOM_NAME.matcher(argument).matches()) {
+                        ctx.writeAndFlush("Usage: /join <room>, a room name being up to 32 letters, digits,"
+                                + " _ or -\n");
+                    } else if (rooms.contains(argument)) {
+                        room = argument;
+                        ctx.writeAndFlush("Now talking in #" + room + ".\n");
+                    } else {
+                        ctx.writeAndFlush("Joined #" + argument + ".\n");
+                        join(ctx, argument);
+                    }
+                    break;
+                case "/leave":
+                    String leaving = argument != null ? argument : room;
+                    if (leaving == null || !rooms.remove(leaving)) {
+                        ctx.writeAndFlush("You are not in " + (leaving == null ? "any room" : "#" + leaving) + ".\n");
+                        break;
+                    }
+                    broadcaster.unsubscribe(leaving, ctx.channel());
+                    if (leaving.equals(room)) {
+                        // Back to the most recently joined room still held, if any
+                        room = null;
+                        for (String joined : rooms) {
+                            room = joined;
+                        }
+                    }
+                    ctx.writeAndFlush("Left #" + leaving + "."
+                            + (room != null ? " Now talking in #" + room + "." : "") + "\n");
+                    publish(ctx, leaving, "A user has left #" + leaving + ".\n");
+                    break;
+                case "/rooms":
+                    StringBuilder reply = new StringBuilder("Rooms:");
+                    for (String joined : rooms) {
+                        reply.append(" #").append(joined).append(joined.equals(room) ? " (talking)" : "");
+                    }
+                    ctx.writeAndFlush(reply.append("\n").toString());
+                    break;
+                default:
+                    ctx.writeAndFlush("Unknown command. Commands: /join <room>, /leave [room], /rooms\n");
+            }
+        }
+
+        private void join(ChannelHandlerContext ctx, String joining) {
+            rooms.add(joining);
+            room = joining;
+            broadcaster.subscribe(joining, ctx.channel());
+            publish(ctx, joining, joining.equals(LOBBY)
+                    ? "A new user has joined the chat.\n" : "A new user has joined #" + joining + ".\n");
+        }
 
-            // Broadcast to all connected clients
-            channels.writeAndFlush(broadcast);
+        // Encoded once here, whoever it goes to
+        private void publish(ChannelHandlerContext ctx, String topic, String text) {
+            broadcaster.publish(topic, ByteBufUtil.writeUtf8(ctx.alloc(), text));
         }
 
         @Override
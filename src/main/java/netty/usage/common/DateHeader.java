@@ -0,0 +1,37 @@
+package netty.usage.common;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.handler.codec.DateFormatter;
+import io.netty.util.AsciiString;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The HTTP {@code Date} header value, formatted once per second on one event loop and shared by
+ * every channel, instead of formatting a date for each response.
+ */
+public final class DateHeader {
+    private volatile AsciiString value = now();
+
+    private DateHeader() {
+    }
+
+    /**
+     * Start refreshing the value every second on one of {@code group}'s event loops; the task stops
+     * when the group shuts down.
+     */
+    public static DateHeader start(EventLoopGroup group) {
+        DateHeader header = new DateHeader();
+        group.next().scheduleAtFixedRate(() -> header.value = now(), 1, 1, TimeUnit.SECONDS);
+        return header;
+    }
+
+    public AsciiString get() {
+        return value;
+    }
+
+    private static AsciiString now() {
+        return new AsciiString(DateFormatter.format(new Date()));
+    }
+}
@@ -0,0 +1,240 @@
+package netty.usage.common;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollMode;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+
+import java.util.Locale;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Picks the Netty transport for the example servers: io_uring or epoll on Linux when their native
+ * libraries load, NIO everywhere else.
+ *
+ * <p>Configured with system properties:
+ * <ul>
+ *   <li>{@code netty.usage.transport}: {@code auto} (default), {@code io_uring}, {@code epoll} or
+ *   {@code nio}; a transport that is not available falls back to NIO with a warning</li>
+ *   <li>{@code netty.usage.epollMode}: {@code edge} (default) or {@code level}-triggered epoll</li>
+ *   <li>{@code netty.usage.reusePortBinds}: listening sockets bound to the same port with
+ *   {@code SO_REUSEPORT}, each with its own boss thread, so the kernel spreads accepts (native
+ *   transports only; default 1)</li>
+ *   <li>{@code netty.usage.tcpFastOpen}: {@code TCP_FASTOPEN} queue length, 0 (default) disables
+ *   (native transports only)</li>
+ *   <li>{@code netty.usage.tcpNoDelay}: {@code TCP_NODELAY} on accepted connections (default true)</li>
+ * </ul>
+ *
+ * <p>io_uring lives in the separate {@code netty-incubator-transport-native-io_uring} artifact,
+ * added by the {@code io_uring} Maven profile, so it is only ever touched through reflection.
+ */
+public final class ServerTransport {
+
+    public enum Kind {
+        IO_URING,
+        EPOLL,
+        NIO
+    }
+
+    private static final Logger logger = Logger.getLogger(ServerTransport.class.getName());
+    private static final String IO_URING_PACKAGE = "io.netty.incubator.channel.uring.";
+
+    private final Kind kind;
+    private final boolean edgeTriggered;
+    private final int reusePortBinds;
+    private final int tcpFastOpen;
+    private final boolean tcpNoDelay;
+
+    private ServerTransport(Kind kind, boolean edgeTriggered, int reusePortBinds, int tcpFastOpen,
+                            boolean tcpNoDelay) {
+        this.kind = kind;
+        this.edgeTriggered = edgeTriggered;
+        this.reusePortBinds = kind == Kind.NIO ? 1 : Math.max(1, reusePortBinds);
+        this.tcpFastOpen = kind == Kind.NIO ? 0 : tcpFastOpen;
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    public static ServerTransport fromSystemProperties() {
+        String requested = System.getProperty("netty.usage.transport", "auto").toLowerCase(Locale.ROOT);
+        Kind kind;
+        switch (requested) {
+            case "auto":
+                kind = isIoUringAvailable() ? Kind.IO_URING : Epoll.isAvailable() ? Kind.EPOLL : Kind.NIO;
+                break;
+            case "io_uring":
+                kind = isIoUringAvailable() ? Kind.IO_URING : fallback(requested, ioUringUnavailabilityCause());
+                break;
+            case "epoll":
+                kind = Epoll.isAvailable() ? Kind.EPOLL : fallback(requested, Epoll.unavailabilityCause());
+                break;
+            case "nio":
+                kind = Kind.NIO;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown netty.usage.transport: " + requested);
+        }
+        return new ServerTransport(
+                kind,
+                !"level".equalsIgnoreCase(System.getProperty("netty.usage.epollMode", "edge")),
+                Integer.getInteger("netty.usage.reusePortBinds", 1),
+                Integer.getInteger("netty.usage.tcpFastOpen", 0),
+                Boolean.parseBoolean(System.getProperty("netty.usage.tcpNoDelay", "true")));
+    }
+
+    private static Kind fallback(String requested, Throwable cause) {
+        logger.log(Level.WARNING, "Transport " + requested + " is not available here, falling back to NIO", cause);
+        return Kind.NIO;
+    }
+
+    public Kind kind() {
+        return kind;
+    }
+
+    /**
+     * One thread per listening socket.
+     */
+    public EventLoopGroup newBossGroup() {
+        return newEventLoopGroup(reusePortBinds);
+    }
+
+    /**
+     * Netty's default size, twice the number of cores.
+     */
+    public EventLoopGroup newWorkerGroup() {
+        return newEventLoopGroup(0);
+    }
+
+    private EventLoopGroup newEventLoopGroup(int threads) {
+        switch (kind) {
+            case IO_URING:
+                return (EventLoopGroup) newIoUringInstance("IOUringEventLoopGroup", threads);
+            case EPOLL:
+                return new EpollEventLoopGroup(threads);
+            default:
+                return new NioEventLoopGroup(threads);
+        }
+    }
+
+    /**
+     * A bootstrap with this transport's server channel class and socket options already set.
+     */
+    public ServerBootstrap newServerBootstrap() {
+        ServerBootstrap bootstrap = new ServerBootstrap()
+                .channel(serverChannelClass())
+                .childOption(ChannelOption.TCP_NODELAY, tcpNoDelay);
+        if (tcpFastOpen > 0) {
+            bootstrap.option(ChannelOption.TCP_FASTOPEN, tcpFastOpen);
+        }
+        if (reusePortBinds > 1) {
+            bootstrap.option(reusePortOption(), true);
+        }
+        if (kind == Kind.EPOLL) {
+            EpollMode mode = edgeTriggered ? EpollMode.EDGE_TRIGGERED : EpollMode.LEVEL_TRIGGERED;
+            bootstrap.option(EpollChannelOption.EPOLL_MODE, mode)
+                    .childOption(EpollChannelOption.EPOLL_MODE, mode);
+        }
+        return bootstrap;
+    }
+
+    /**
+     * Bind {@code reusePortBinds} listening sockets to {@code port} and wait until all are bound.
+     *
+     * @return the first bind; the servers wait on its close future
+     */
+    public ChannelFuture bind(ServerBootstrap bootstrap, int port) throws InterruptedException {
+        ChannelFuture first = bootstrap.bind(port).sync();
+        for (int i = 1; i < reusePortBinds; i++) {
+            bootstrap.bind(port).sync();
+        }
+        return first;
+    }
+
+    /**
+     * Whether {@code channel} can write a {@code FileRegion}: NIO and epoll send it with
+     * {@code transferTo}/{@code sendfile}, the incubator io_uring channels only accept byte buffers.
+     */
+    public static boolean supportsFileRegion(Channel channel) {
+        return !channel.getClass().getName().startsWith(IO_URING_PACKAGE);
+    }
+
+    private Class<? extends ServerChannel> serverChannelClass() {
+        switch (kind) {
+            case IO_URING:
+                return ioUringClass("IOUringServerSocketChannel").asSubclass(ServerChannel.class);
+            case EPOLL:
+                return EpollServerSocketChannel.class;
+            default:
+                return NioServerSocketChannel.class;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private ChannelOption<Boolean> reusePortOption() {
+        if (kind == Kind.EPOLL) {
+            return EpollChannelOption.SO_REUSEPORT;
+        }
+        try {
+            return (ChannelOption<Boolean>) ioUringClass("IOUringChannelOption")
+                    .getField("SO_REUSEPORT").get(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot read IOUringChannelOption.SO_REUSEPORT", e);
+        }
+    }
+
+    private static boolean isIoUringAvailable() {
+        try {
+            return (Boolean) ioUringClass("IOUring").getMethod("isAvailable").invoke(null);
+        } catch (ReflectiveOperationException | IllegalStateException | LinkageError e) {
+            return false;
+        }
+    }
+
+    private static Throwable ioUringUnavailabilityCause() {
+        try {
+            return (Throwable) ioUringClass("IOUring").getMethod("unavailabilityCause").invoke(null);
+        } catch (ReflectiveOperationException | IllegalStateException | LinkageError e) {
+            return e;
+        }
+    }
+
+    private static Object newIoUringInstance(String simpleName, int threads) {
+        try {
+            return ioUringClass(simpleName).getConstructor(int.class).newInstance(threads);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot create " + simpleName, e);
+        }
+    }
+
+    private static Class<?> ioUringClass(String simpleName) {
+        try {
+            return Class.forName(IO_URING_PACKAGE + simpleName);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("io_uring transport is not on the classpath", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder description = new StringBuilder(kind.name().toLowerCase(Locale.ROOT));
+        if (kind == Kind.EPOLL) {
+            description.append(edgeTriggered ? ", edge-triggered" : ", level-triggered");
+        }
+        if (reusePortBinds > 1) {
+            description.append(", ").append(reusePortBinds).append(" SO_REUSEPORT binds");
+        }
+        if (tcpFastOpen > 0) {
+            description.append(", TCP_FASTOPEN");
+        }
+        return description.toString();
+    }
+}
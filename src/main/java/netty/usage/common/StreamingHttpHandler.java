@@ -0,0 +1,138 @@
+package netty.usage.common;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.ArrayDeque;
+
+/**
+ * Base for handlers that take a request body chunk by chunk as {@code HttpServerCodec} decodes it,
+ * instead of behind an {@code HttpObjectAggregator}, so a body of any size costs one chunk of memory.
+ *
+ * <p>Each request is seen as {@link #requestStarted}, any number of {@link #bodyChunk} calls, then
+ * {@link #requestFinished}. Chunks are released once {@code bodyChunk} returns; retain one to keep it.
+ *
+ * <p>Backpressure is auto-read toggling: a handler that cannot keep up (a disk write queue that is too
+ * deep, say) calls {@link #pauseReading} and later {@link #resumeReading}. Reading is also paused while
+ * the channel is not writable, so a client that does not read its responses stops being read from.
+ * Chunks already read from the socket are still delivered after a pause.
+ *
+ * <p>A handler that answers a request asynchronously calls {@link #suspendRequests} until its response
+ * has been written: pipelined requests that arrive meanwhile are held back and replayed afterwards, so
+ * responses still go out in request order.
+ */
+public abstract class StreamingHttpHandler extends ChannelInboundHandlerAdapter {
+    private static final int PAUSED_BY_HANDLER = 1;
+    private static final int PAUSED_BY_WRITABILITY = 2;
+    private static final int PAUSED_BY_SUSPEND = 4;
+
+    private boolean inRequest;
+    private int paused;
+    private boolean suspended;
+    private final ArrayDeque<Object> deferred = new ArrayDeque<>();
+
+    /**
+     * The request line and headers have been decoded; the body, if any, follows. A request whose
+     * {@code decoderResult()} failed gets no body or {@link #requestFinished} call.
+     */
+    protected abstract void requestStarted(ChannelHandlerContext ctx, HttpRequest request) throws Exception;
+
+    /**
+     * The next piece of the current request's body. Discarded unless overridden.
+     */
+    protected void bodyChunk(ChannelHandlerContext ctx, ByteBuf chunk) throws Exception {
+    }
+
+    /**
+     * The current request's body is complete; {@code last} carries any trailing headers.
+     */
+    protected abstract void requestFinished(ChannelHandlerContext ctx, LastHttpContent last) throws Exception;
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (!(msg instanceof HttpRequest) && !(msg instanceof HttpContent)) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+        if (suspended) {
+            deferred.add(msg);
+            return;
+        }
+        try {
+            if (msg instanceof HttpRequest) {
+                HttpRequest request = (HttpRequest) msg;
+                // After a decode failure nothing that follows is a usable body
+                inRequest = request.decoderResult().isSuccess();
+                requestStarted(ctx, request);
+            }
+            if (msg instanceof HttpContent && inRequest) {
+                ByteBuf chunk = ((HttpContent) msg).content();
+                if (chunk.isReadable()) {
+                    bodyChunk(ctx, chunk);
+                }
+                if (msg instanceof LastHttpContent) {
+                    inRequest = false;
+                    requestFinished(ctx, (LastHttpContent) msg);
+                }
+            }
+        } finally {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    /**
+     * Hold back further requests until {@link #resumeRequests}, which must be called on the event loop.
+     */
+    protected final void suspendRequests(ChannelHandlerContext ctx) {
+        suspended = true;
+        setPaused(ctx, paused | PAUSED_BY_SUSPEND);
+    }
+
+    protected final void resumeRequests(ChannelHandlerContext ctx) throws Exception {
+        suspended = false;
+        while (!suspended && !deferred.isEmpty()) {
+            channelRead(ctx, deferred.poll());
+        }
+        if (!suspended) {
+            setPaused(ctx, paused & ~PAUSED_BY_SUSPEND);
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        Object msg;
+        while ((msg = deferred.poll()) != null) {
+            ReferenceCountUtil.release(msg);
+        }
+        super.channelInactive(ctx);
+    }
+
+    protected final void pauseReading(ChannelHandlerContext ctx) {
+        setPaused(ctx, paused | PAUSED_BY_HANDLER);
+    }
+
+    protected final void resumeReading(ChannelHandlerContext ctx) {
+        setPaused(ctx, paused & ~PAUSED_BY_HANDLER);
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (ctx.channel().isWritable()) {
+            setPaused(ctx, paused & ~PAUSED_BY_WRITABILITY);
+        } else {
+            setPaused(ctx, paused | PAUSED_BY_WRITABILITY);
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    private void setPaused(ChannelHandlerContext ctx, int paused) {
+        this.paused = paused;
+        // Turning auto-read back on issues a read by itself
+        ctx.channel().config().setAutoRead(paused == 0);
+    }
+}
@@ -2,9 +2,8 @@ package netty.usage.echo;
 
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.*;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
+import netty.usage.common.ServerTransport;
 
 /**
  * Simple Echo Server that echoes back any received message
@@ -17,13 +16,13 @@ public class EchoServer {
     }
 
     public void start() throws Exception {
-        EventLoopGroup bossGroup = new NioEventLoopGroup(1);
-        EventLoopGroup workerGroup = new NioEventLoopGroup();
+        ServerTransport transport = ServerTransport.fromSystemProperties();
+        EventLoopGroup bossGroup = transport.newBossGroup();
+        EventLoopGroup workerGroup = transport.newWorkerGroup();
 
         try {
-            ServerBootstrap bootstrap = new ServerBootstrap();
+            ServerBootstrap bootstrap = transport.newServerBootstrap();
             bootstrap.group(bossGroup, workerGroup)
-                    .channel(NioServerSocketChannel.class)
                     .childHandler(new ChannelInitializer<SocketChannel>() {
                         @Override
                         public void initChannel(SocketChannel ch) {
@@ -33,8 +32,8 @@ public class EchoServer {
                     .option(ChannelOption.SO_BACKLOG, 128)
                     .childOption(ChannelOption.SO_KEEPALIVE, true);
 
-            ChannelFuture future = bootstrap.bind(port).sync();
-            System.out.println("Echo Server started on port " + port);
+            ChannelFuture future = transport.bind(bootstrap, port);
+            System.out.println("Echo Server started on port " + port + " (" + transport + ")");
 
             future.channel().closeFuture().sync();
         } finally {
@@ -3,14 +3,20 @@ package netty.usage.echo;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
 /**
  * Handler for the Echo Server that simply echoes back received messages
  */
 public class EchoServerHandler extends ChannelInboundHandlerAdapter {
+    private static final Logger logger = Logger.getLogger(EchoServerHandler.class.getName());
 
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) {
-        System.out.println("Server received: " + msg);
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine("Server received: " + msg);
+        }
         ctx.write(msg); // Echo back the received message
     }
 
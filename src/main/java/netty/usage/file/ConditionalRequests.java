@@ -0,0 +1,181 @@
+package netty.usage.file;
+
+import io.netty.handler.codec.DateFormatter;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequest;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Validators ({@code ETag}, {@code Last-Modified}) and the request headers checked against them:
+ * {@code If-None-Match} and {@code If-Modified-Since} for 304s, {@code Range} and {@code If-Range}
+ * for partial content. Validators are passed around as the header values the response carries.
+ */
+final class ConditionalRequests {
+    // More ranges than this in one request is treated as no Range header at all
+    private static final int MAX_RANGES = 16;
+
+    /**
+     * An inclusive byte range within a representation.
+     */
+    static final class Range {
+        final long start;
+        final long end;
+
+        Range(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        long length() {
+            return end - start + 1;
+        }
+
+        String contentRange(long total) {
+            return "bytes " + start + "-" + end + "/" + total;
+        }
+    }
+
+    private ConditionalRequests() {
+    }
+
+    /**
+     * A strong validator from a file's size and modification time, the pair that changes when the
+     * file does, so no content has to be read to produce it.
+     */
+    static String etag(long size, long lastModified) {
+        return "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(size) + "\"";
+    }
+
+    static String lastModified(long lastModified) {
+        return DateFormatter.format(new Date(lastModified));
+    }
+
+    /**
+     * Whether the client's copy is current: {@code If-None-Match} decides when present, otherwise
+     * {@code If-Modified-Since}.
+     */
+    static boolean isNotModified(HttpRequest request, String etag, String lastModified) {
+        HttpHeaders headers = request.headers();
+        String ifNoneMatch = headers.get(HttpHeaderNames.IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            return etag != null && matchesAny(ifNoneMatch, etag);
+        }
+        String ifModifiedSince = headers.get(HttpHeaderNames.IF_MODIFIED_SINCE);
+        if (ifModifiedSince == null || lastModified == null) {
+            return false;
+        }
+        Date since = DateFormatter.parseHttpDate(ifModifiedSince);
+        Date modified = DateFormatter.parseHttpDate(lastModified);
+        return since != null && modified != null && !modified.after(since);
+    }
+
+    // Weak comparison, as If-None-Match uses: W/"x" and "x" match
+    private static boolean matchesAny(String ifNoneMatch, String etag) {
+        if (ifNoneMatch.trim().equals("*")) {
+            return true;
+        }
+        String opaque = stripWeak(etag);
+        for (String candidate : ifNoneMatch.split(",")) {
+            if (stripWeak(candidate.trim()).equals(opaque)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String stripWeak(String tag) {
+        return tag.startsWith("W/") ? tag.substring(2) : tag;
+    }
+
+    /**
+     * The ranges of a {@code length}-byte representation the request asks for, in request order.
+     *
+     * @return null to send the whole representation (no {@code Range}, one this server ignores, or an
+     * {@code If-Range} that no longer matches); an empty list when no range can be satisfied (416)
+     */
+    static List<Range> ranges(HttpRequest request, long length, String etag, String lastModified) {
+        String header = request.headers().get(HttpHeaderNames.RANGE);
+        if (header == null || !header.startsWith("bytes=")) {
+            return null;
+        }
+        String ifRange = request.headers().get(HttpHeaderNames.IF_RANGE);
+        if (ifRange != null) {
+            // Strong comparison: a weak tag never matches, a date must be the exact Last-Modified
+            boolean current = ifRange.startsWith("\"") ? ifRange.equals(etag) : ifRange.equals(lastModified);
+            if (!current) {
+                return null;
+            }
+        }
+
+        List<Range> ranges = new ArrayList<>();
+        for (String spec : header.substring("bytes=".length()).split(",")) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            long first = parseDigits(spec, 0, dash);
+            long last = parseDigits(spec, dash + 1, spec.length());
+            long start;
+            long end;
+            if (dash == 0) {
+                // bytes=-N: the last N bytes
+                if (last < 0) {
+                    return null;
+                }
+                if (last == 0 || length == 0) {
+                    continue;
+                }
+                start = Math.max(0, length - last);
+                end = length - 1;
+            } else {
+                if (first < 0 || (dash < spec.length() - 1 && (last < 0 || last < first))) {
+                    return null;
+                }
+                if (first >= length) {
+                    continue;
+                }
+                start = first;
+                end = dash == spec.length() - 1 ? length - 1 : Math.min(last, length - 1);
+            }
+            ranges.add(new Range(start, end));
+            if (ranges.size() > MAX_RANGES) {
+                return null;
+            }
+        }
+        return ranges;
+    }
+
+    // -1 unless s[from, to) is a non-empty run of digits
+    private static long parseDigits(String s, int from, int to) {
+        if (from >= to || to - from > 18) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * The delimiter and headers that open one part of a {@code multipart/byteranges} body.
+     */
+    static String partHeader(String boundary, String contentType, Range range, long total) {
+        return "\r\n--" + boundary + "\r\n"
+                + "Content-Type: " + contentType + "\r\n"
+                + "Content-Range: " + range.contentRange(total) + "\r\n\r\n";
+    }
+
+    static String closingDelimiter(String boundary) {
+        return "\r\n--" + boundary + "--\r\n";
+    }
+}
@@ -0,0 +1,315 @@
+package netty.usage.file;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.util.concurrent.Future;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Directory listings, read with {@link Files#newDirectoryStream} on the file I/O executors rather than
+ * an event loop, and kept per directory until the {@link DirectoryWatcher} reports a change in it.
+ * A page of a listing is rendered as HTML or JSON a batch of entries at a time, as a
+ * {@link ChunkedInput} that {@code ChunkedWriteHandler} pulls from while the channel is writable.
+ */
+final class DirectoryListings {
+    // Entries rendered into each chunk
+    private static final int BATCH = 256;
+
+    static final class Entry {
+        final String name;
+        final boolean directory;
+        final long size;
+        final long lastModified;
+
+        Entry(String name, boolean directory, long size, long lastModified) {
+            this.name = name;
+            this.directory = directory;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private final EventExecutorGroup executors;
+    private final DirectoryWatcher watcher;
+    private final DirectoryWatcher.Listener changeListener = this::directoryChanged;
+    private final Map<Path, Future<List<Entry>>> listings = new ConcurrentHashMap<>();
+
+    DirectoryListings(EventExecutorGroup executors, DirectoryWatcher watcher) {
+        this.executors = executors;
+        this.watcher = watcher;
+    }
+
+    /**
+     * The entries of {@code dir} sorted by name: already complete when cached, otherwise being read.
+     * Concurrent requests for the same directory share one read.
+     */
+    Future<List<Entry>> list(Path dir) {
+        Path key = dir.toAbsolutePath().normalize();
+        Future<List<Entry>> listing = listings.get(key);
+        if (listing != null) {
+            return listing;
+        }
+        listing = listings.computeIfAbsent(key, d -> executors.next().submit(() -> read(d)));
+        Future<List<Entry>> reading = listing;
+        // A failed read is not cached; the next request tries again
+        reading.addListener(f -> {
+            if (!f.isSuccess()) {
+                listings.remove(key, reading);
+            }
+        });
+        return listing;
+    }
+
+    private List<Entry> read(Path dir) throws IOException {
+        // Watch first, so a change made while reading still drops the listing
+        watcher.watch(dir, changeListener);
+        List<Entry> entries = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path path : stream) {
+                BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                } catch (IOException e) {
+                    // Deleted since the directory was read
+                    continue;
+                }
+                entries.add(new Entry(path.getFileName().toString(), attributes.isDirectory(),
+                        attributes.size(), attributes.lastModifiedTime().toMillis()));
+            }
+        }
+        entries.sort(Comparator.comparing(entry -> entry.name));
+        return Collections.unmodifiableList(entries);
+    }
+
+    private void directoryChanged(Path dir, Path file) {
+        listings.remove(dir);
+    }
+
+    /**
+     * Page {@code page} (from 1) of {@code entries}, {@code pageSize} entries long, as HTML.
+     */
+    static ChunkedInput<ByteBuf> html(Path dir, List<Entry> entries, int page, int pageSize) {
+        return new HtmlPage(dir, entries, page, pageSize);
+    }
+
+    /**
+     * Page {@code page} (from 1) of {@code entries}, {@code pageSize} entries long, as JSON.
+     */
+    static ChunkedInput<ByteBuf> json(Path dir, List<Entry> entries, int page, int pageSize) {
+        return new JsonPage(dir, entries, page, pageSize);
+    }
+
+    private abstract static class Page implements ChunkedInput<ByteBuf> {
+        final Path dir;
+        final List<Entry> entries;
+        final int page;
+        final int pageSize;
+        final int pages;
+        private final int from;
+        private final int to;
+        private int next = -1;
+
+        Page(Path dir, List<Entry> entries, int page, int pageSize) {
+            this.dir = dir.toAbsolutePath().normalize();
+            this.entries = entries;
+            this.page = page;
+            this.pageSize = pageSize;
+            this.pages = Math.max(1, (entries.size() + pageSize - 1) / pageSize);
+            this.from = (int) Math.min(entries.size(), (long) (page - 1) * pageSize);
+            this.to = Math.min(entries.size(), from + pageSize);
+        }
+
+        abstract void header(StringBuilder out);
+
+        abstract void entry(StringBuilder out, Entry entry, boolean first);
+
+        abstract void footer(StringBuilder out);
+
+        @Override
+        public boolean isEndOfInput() {
+            return next > to;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Deprecated
+        @Override
+        public ByteBuf readChunk(ChannelHandlerContext ctx) {
+            return readChunk(ctx.alloc());
+        }
+
+        @Override
+        public ByteBuf readChunk(ByteBufAllocator allocator) {
+            if (isEndOfInput()) {
+                return null;
+            }
+            StringBuilder out = new StringBuilder();
+            if (next < 0) {
+                header(out);
+                next = from;
+            }
+            int end = Math.min(to, next + BATCH);
+            for (int i = next; i < end; i++) {
+                entry(out, entries.get(i), i == from);
+            }
+            next = end;
+            if (next == to) {
+                footer(out);
+                next = to + 1;
+            }
+            return ByteBufUtil.writeUtf8(allocator, out);
+        }
+
+        @Override
+        public long length() {
+            return -1;
+        }
+
+        @Override
+        public long progress() {
+            return Math.max(0, Math.min(next, to) - from);
+        }
+    }
+
+    private static final class HtmlPage extends Page {
+
+        HtmlPage(Path dir, List<Entry> entries, int page, int pageSize) {
+            super(dir, entries, page, pageSize);
+        }
+
+        @Override
+        void header(StringBuilder out) {
+            out.append("<!DOCTYPE html>");
+            out.append("<html><head><title>Directory listing</title></head><body>");
+            out.append("<h3>Directory: ");
+            escape(out, dir.toString());
+            out.append("</h3>");
+            out.append("<ul>");
+        }
+
+        @Override
+        void entry(StringBuilder out, Entry entry, boolean first) {
+            out.append("<li><a href=\"");
+            escape(out, entry.name);
+            if (entry.directory) {
+                out.append('/');
+            }
+            out.append("\">");
+            escape(out, entry.name);
+            if (entry.directory) {
+                out.append('/');
+            }
+            out.append("</a></li>");
+        }
+
+        @Override
+        void footer(StringBuilder out) {
+            out.append("</ul>");
+            if (pages > 1) {
+                out.append("<p>");
+                if (page > 1) {
+                    out.append("<a href=\"?page=").append(page - 1).append("&amp;size=").append(pageSize)
+                            .append("\">Previous</a> ");
+                }
+                out.append("Page ").append(page).append(" of ").append(pages)
+                        .append(" (").append(entries.size()).append(" entries)");
+                if (page < pages) {
+                    out.append(" <a href=\"?page=").append(page + 1).append("&amp;size=").append(pageSize)
+                            .append("\">Next</a>");
+                }
+                out.append("</p>");
+            }
+            out.append("</body></html>");
+        }
+
+        private static void escape(StringBuilder out, String text) {
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                switch (c) {
+                    case '<':
+                        out.append("&lt;");
+                        break;
+                    case '>':
+                        out.append("&gt;");
+                        break;
+                    case '&':
+                        out.append("&amp;");
+                        break;
+                    case '"':
+                        out.append("&quot;");
+                        break;
+                    default:
+                        out.append(c);
+                }
+            }
+        }
+    }
+
+    private static final class JsonPage extends Page {
+
+        JsonPage(Path dir, List<Entry> entries, int page, int pageSize) {
+            super(dir, entries, page, pageSize);
+        }
+
+        @Override
+        void header(StringBuilder out) {
+            out.append("{\"directory\":");
+            string(out, dir.toString());
+            out.append(",\"page\":").append(page)
+                    .append(",\"pages\":").append(pages)
+                    .append(",\"pageSize\":").append(pageSize)
+                    .append(",\"total\":").append(entries.size())
+                    .append(",\"entries\":[");
+        }
+
+        @Override
+        void entry(StringBuilder out, Entry entry, boolean first) {
+            if (!first) {
+                out.append(',');
+            }
+            out.append("{\"name\":");
+            string(out, entry.name);
+            out.append(",\"directory\":").append(entry.directory)
+                    .append(",\"size\":").append(entry.size)
+                    .append(",\"lastModified\":").append(entry.lastModified)
+                    .append('}');
+        }
+
+        @Override
+        void footer(StringBuilder out) {
+            out.append("]}");
+        }
+
+        private static void string(StringBuilder out, String text) {
+            out.append('"');
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (c == '"' || c == '\\') {
+                    out.append('\\').append(c);
+                } else if (c < 0x20) {
+                    out.append(String.format("\\u%04x", (int) c));
+                } else {
+                    out.append(c);
+                }
+            }
+            out.append('"');
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package netty.usage.file;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.*;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * One {@link WatchService} and thread shared by the file server's caches. Each directory is registered
+ * once; every listener on it hears about each entry created, modified or deleted there.
+ */
+final class DirectoryWatcher {
+
+    interface Listener {
+        /**
+         * {@code file} in {@code dir} changed, or, when {@code file} is null, events were lost and
+         * anything in {@code dir} may have.
+         */
+        void changed(Path dir, Path file);
+    }
+
+    private final WatchService watchService;
+    private final Map<Path, List<Listener>> listeners = new ConcurrentHashMap<>();
+
+    DirectoryWatcher() throws IOException {
+        this.watchService = FileSystems.getDefault().newWatchService();
+        Thread thread = new Thread(this::processEvents, "DirectoryWatcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Start telling {@code listener} about changes in {@code dir}, an absolute path. Adding the same
+     * listener again is a no-op.
+     */
+    void watch(Path dir, Listener listener) throws IOException {
+        List<Listener> dirListeners = listeners.get(dir);
+        if (dirListeners == null) {
+            try {
+                dirListeners = listeners.computeIfAbsent(dir, d -> {
+                    try {
+                        d.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                                StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    return new CopyOnWriteArrayList<>();
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+        if (!dirListeners.contains(listener)) {
+            dirListeners.add(listener);
+        }
+    }
+
+    private void processEvents() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path dir = (Path) key.watchable();
+            List<Listener> dirListeners = listeners.getOrDefault(dir, List.of());
+            for (WatchEvent<?> event : key.pollEvents()) {
+                Path file = event.kind() == StandardWatchEventKinds.OVERFLOW
+                        ? null : dir.resolve((Path) event.context());
+                for (Listener listener : dirListeners) {
+                    listener.changed(dir, file);
+                }
+            }
+            if (!key.reset()) {
+                // The directory is gone: forget it so a new one by that name gets registered afresh
+                listeners.remove(dir);
+                for (Listener listener : dirListeners) {
+                    listener.changed(dir, null);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,390 @@
+package netty.usage.file;
+
+import common.metrics.Counter;
+import common.metrics.MetricsRegistry;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Ready-made responses for small static files and classpath pages, so a hot file is served from a
+ * direct buffer with its headers already built instead of being opened, stat'ed and read per request.
+ *
+ * <p>Entries are evicted least recently used once their bodies add up to more than the byte budget.
+ * Each cached file's directory is watched with the {@link DirectoryWatcher}, and any change to the file
+ * drops its entry; the next request reloads it. Responses share the entry's body through retained
+ * duplicates, so an evicted body is freed once the last response using it has been written.
+ *
+ * <p>A text file can have encoded variants next to it in the cache: precompressed {@code .br}/{@code .gz}
+ * siblings read from disk, or gzip compressed here from the cached body. Either is dropped along with
+ * the file it belongs to.
+ */
+final class FileCache {
+    private static final String CLASSPATH_PREFIX = "classpath:";
+    // Key suffix for the gzip variant compressed from a cached file
+    private static final String GZIP_SUFFIX = "\0gzip";
+
+    /**
+     * A cached file: its bytes and the headers every response for it carries.
+     */
+    private static final class Entry {
+        private final ByteBuf body;
+        private final HttpHeaders headers;
+        // The watch of the file read, let go of along with the entry; null for variants and jar resources
+        private final Watch watch;
+
+        Entry(ByteBuf body, Watch watch, String contentType, String contentEncoding, String etag,
+              String lastModified) {
+            this.body = body;
+            this.watch = watch;
+            this.headers = new DefaultHttpHeaders(false)
+                    .set(HttpHeaderNames.CONTENT_TYPE, contentType)
+                    .set(HttpHeaderNames.CONTENT_LENGTH, body.readableBytes())
+                    .set(HttpHeaderNames.ETAG, etag);
+            if (contentEncoding != null) {
+                headers.set(HttpHeaderNames.CONTENT_ENCODING, contentEncoding)
+                        .set(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING);
+            }
+            if (lastModified != null) {
+                headers.set(HttpHeaderNames.LAST_MODIFIED, lastModified);
+            }
+        }
+
+        FullHttpResponse newResponse() {
+            FullHttpResponse response = new DefaultFullHttpResponse(
+                    HttpVersion.HTTP_1_1, HttpResponseStatus.OK, body.retainedDuplicate(), false);
+            response.headers().set(headers);
+            return response;
+        }
+
+        int size() {
+            return body.readableBytes();
+        }
+    }
+
+    /**
+     * A file being watched for the entry read from it. Each read of a cacheable file registers a new
+     * one, and a change takes it away, so an entry is only stored while the watch registered before
+     * its read is still there: otherwise the file changed during the read and the bytes may already be
+     * stale. Paths that turn out not to be cacheable keep no watch, nor do entries once evicted.
+     */
+    private static final class Watch {
+        private final Path file;
+        private final String key;
+
+        Watch(Path file, String key) {
+            this.file = file;
+            this.key = key;
+        }
+    }
+
+    private final long maxBytes;
+    private final int maxEntryBytes;
+    // Access-ordered, so iteration starts at the least recently used entry
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long totalBytes;
+
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter evictions;
+    private final Counter invalidations;
+
+    private final DirectoryWatcher watcher;
+    private final DirectoryWatcher.Listener changeListener = this::fileChanged;
+    // Watched file -> the watch of its latest read
+    private final Map<Path, Watch> watchedFiles = new ConcurrentHashMap<>();
+    // Precompressed siblings known not to exist, until their directory (a cached file's) reports a change
+    private final Set<String> missing = ConcurrentHashMap.newKeySet();
+
+    FileCache(long maxBytes, int maxEntryBytes, DirectoryWatcher watcher, MetricsRegistry registry) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxEntryBytes;
+        this.hits = registry.counter("netty_file_cache_hits_total", "Requests answered from the file cache");
+        this.misses = registry.counter("netty_file_cache_misses_total", "File cache lookups that found nothing");
+        this.evictions = registry.counter("netty_file_cache_evictions_total",
+                "Entries dropped to stay within the cache's byte budget");
+        this.invalidations = registry.counter("netty_file_cache_invalidations_total",
+                "Entries dropped because their file changed");
+        registry.gauge("netty_file_cache_bytes", "Body bytes held by the file cache", this::totalBytes);
+        registry.gauge("netty_file_cache_entries", "Files held by the file cache", this::entryCount);
+
+        this.watcher = watcher;
+    }
+
+    /**
+     * A 200 response for the file at {@code path}, or null if it does not exist, is hidden, is not a
+     * regular file, or is too big to cache; callers then serve it the uncached way.
+     */
+    FullHttpResponse file(Path path, String contentType) throws IOException {
+        Path file = path.toAbsolutePath().normalize();
+        String key = file.toString();
+        FullHttpResponse cached = lookup(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        return load(file, key, contentType, null);
+    }
+
+    /**
+     * A 200 response for {@code compressed}, a precompressed sibling such as {@code app.js.br} of a
+     * cached file, sent with {@code contentType} of the original and the given {@code Content-Encoding}.
+     * Null if there is no such file (remembered, so asking again costs no stat) or it can't be cached.
+     */
+    FullHttpResponse sibling(Path compressed, String contentType, String contentEncoding) throws IOException {
+        Path file = compressed.toAbsolutePath().normalize();
+        String key = file.toString();
+        if (missing.contains(key)) {
+            return null;
+        }
+        FullHttpResponse cached = lookup(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        // The cached file's directory, already watched; done before the check so a sibling created after
+        // it still clears the missing mark
+        try {
+            watcher.watch(file.getParent(), changeListener);
+        } catch (NoSuchFileException | NotDirectoryException e) {
+            return null;
+        }
+        if (Files.notExists(file)) {
+            missing.add(key);
+            // Created just before the mark, its event may have come before it too
+            if (Files.exists(file)) {
+                missing.remove(key);
+            }
+            return null;
+        }
+        return load(file, key, contentType, contentEncoding);
+    }
+
+    /**
+     * A gzip response for the file at {@code path}, compressed from {@code identity} (the cached
+     * response {@link #file} returned for it) the first time and cached alongside it after that.
+     */
+    FullHttpResponse gzipped(Path path, FullHttpResponse identity) {
+        String key = path.toAbsolutePath().normalize() + GZIP_SUFFIX;
+        HttpHeaders headers = identity.headers();
+        String etag = headers.get(HttpHeaderNames.ETAG);
+        // A different representation needs a different tag: "x" becomes "x-gz"
+        String gzipEtag = etag.substring(0, etag.length() - 1) + "-gz\"";
+        FullHttpResponse cached = lookup(key);
+        if (cached != null) {
+            if (gzipEtag.equals(cached.headers().get(HttpHeaderNames.ETAG))) {
+                return cached;
+            }
+            // Compressed from a version of the file that changed while it was being compressed
+            cached.release();
+        }
+
+        return store(key, null, Gzip.compress(identity.content()), headers.get(HttpHeaderNames.CONTENT_TYPE), "gzip",
+                gzipEtag, headers.get(HttpHeaderNames.LAST_MODIFIED));
+    }
+
+    /**
+     * A 200 response for the classpath resource {@code name}, or null if there is none. The server's
+     * own pages are always cached, whatever their size.
+     */
+    FullHttpResponse resource(String name, String contentType) throws IOException {
+        String key = CLASSPATH_PREFIX + name;
+        FullHttpResponse cached = lookup(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        URL url = getClass().getClassLoader().getResource(name);
+        if (url == null) {
+            return null;
+        }
+        // Resources from a directory (an IDE or exec:java run) can change; ones in a jar can't
+        Watch watch = null;
+        if ("file".equals(url.getProtocol())) {
+            try {
+                watch = watch(Paths.get(url.toURI()), key);
+            } catch (URISyntaxException e) {
+                // Not watchable: cached until evicted
+            }
+        }
+        URLConnection connection = url.openConnection();
+        long lastModified = connection.getLastModified();
+        byte[] content;
+        try (InputStream in = connection.getInputStream()) {
+            content = in.readAllBytes();
+        } catch (IOException e) {
+            if (watch != null) {
+                unwatch(watch);
+            }
+            throw e;
+        }
+        return store(key, watch, content, contentType, null, ConditionalRequests.etag(content.length, lastModified),
+                lastModified > 0 ? ConditionalRequests.lastModified(lastModified) : null);
+    }
+
+    /**
+     * Stat, watch, read and store {@code file} under {@code key}, or null if it isn't there or isn't a
+     * regular, visible file small enough to cache.
+     */
+    private FullHttpResponse load(Path file, String key, String contentType, String contentEncoding)
+            throws IOException {
+        if (cacheableAttributes(file) == null) {
+            return null;
+        }
+        Watch watch;
+        try {
+            watch = watch(file, key);
+        } catch (NoSuchFileException | NotDirectoryException e) {
+            return null;
+        }
+        try {
+            // Again now that changes are reported: one between the first stat and the watch wasn't
+            BasicFileAttributes attributes = cacheableAttributes(file);
+            if (attributes == null) {
+                unwatch(watch);
+                return null;
+            }
+            byte[] content = Files.readAllBytes(file);
+            long lastModified = attributes.lastModifiedTime().toMillis();
+            return store(key, watch, content, contentType, contentEncoding,
+                    ConditionalRequests.etag(content.length, lastModified),
+                    ConditionalRequests.lastModified(lastModified));
+        } catch (NoSuchFileException | NotDirectoryException e) {
+            unwatch(watch);
+            return null;
+        } catch (IOException e) {
+            unwatch(watch);
+            throw e;
+        }
+    }
+
+    private BasicFileAttributes cacheableAttributes(Path file) throws IOException {
+        BasicFileAttributes attributes = OpenFileCache.regularFileAttributes(file);
+        return attributes != null && attributes.size() <= maxEntryBytes ? attributes : null;
+    }
+
+    // Responses are built under the lock so an eviction can't free a body before it is retained
+    private synchronized FullHttpResponse lookup(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.newResponse();
+    }
+
+    /**
+     * Cache and answer with {@code content}, unless {@code watch} (the watch registered before reading
+     * it, if the file is watched) has been taken away by a change: then only this request is answered
+     * with it. Checked under the lock, which a change's invalidation also takes, so a change either
+     * prevents the store or removes what was stored.
+     */
+    private FullHttpResponse store(String key, Watch watch, byte[] content, String contentType,
+                                   String contentEncoding, String etag, String lastModified) {
+        Entry entry = new Entry(Unpooled.directBuffer(content.length).writeBytes(content), watch, contentType,
+                contentEncoding, etag, lastModified);
+        synchronized (this) {
+            if (watch != null && watchedFiles.get(watch.file) != watch) {
+                FullHttpResponse response = entry.newResponse();
+                entry.body.release();
+                return response;
+            }
+            Entry previous = entries.put(key, entry);
+            if (previous != null) {
+                remove(previous);
+            }
+            totalBytes += entry.size();
+            Iterator<Entry> eldest = entries.values().iterator();
+            while (totalBytes > maxBytes && eldest.hasNext()) {
+                Entry evicted = eldest.next();
+                if (evicted == entry) {
+                    continue;
+                }
+                eldest.remove();
+                remove(evicted);
+                evictions.increment();
+            }
+            return entry.newResponse();
+        }
+    }
+
+    private synchronized void invalidate(String key) {
+        missing.remove(key);
+        for (String variant : new String[] {key, key + GZIP_SUFFIX}) {
+            Entry entry = entries.remove(variant);
+            if (entry != null) {
+                remove(entry);
+                invalidations.increment();
+            }
+        }
+    }
+
+    // Caller holds the lock and has already taken the entry out of the map
+    private void remove(Entry entry) {
+        totalBytes -= entry.size();
+        entry.body.release();
+        if (entry.watch != null) {
+            unwatch(entry.watch);
+        }
+    }
+
+    private synchronized long totalBytes() {
+        return totalBytes;
+    }
+
+    private synchronized long entryCount() {
+        return entries.size();
+    }
+
+    private Watch watch(Path file, String key) throws IOException {
+        Watch watch = new Watch(file, key);
+        watchedFiles.put(file, watch);
+        try {
+            watcher.watch(file.getParent(), changeListener);
+        } catch (IOException e) {
+            unwatch(watch);
+            throw e;
+        }
+        return watch;
+    }
+
+    // Only if it is still the file's latest watch; a newer read's stays
+    private void unwatch(Watch watch) {
+        watchedFiles.remove(watch.file, watch);
+    }
+
+    private void fileChanged(Path dir, Path file) {
+        if (file == null) {
+            // Events were lost: anything cached from this directory may be stale
+            watchedFiles.entrySet().removeIf(watched -> {
+                if (!watched.getKey().getParent().equals(dir)) {
+                    return false;
+                }
+                invalidate(watched.getValue().key);
+                return true;
+            });
+            missing.removeIf(key -> dir.equals(Paths.get(key).getParent()));
+            return;
+        }
+        missing.remove(file.toString());
+        // Taken away before invalidating, so a read in progress won't store what it read either
+        Watch watch = watchedFiles.remove(file);
+        if (watch != null) {
+            invalidate(watch.key);
+        }
+    }
+}
@@ -1,59 +1,111 @@
 package netty.usage.file;
 
+import common.metrics.MetricsRegistry;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.http.*;
-import io.netty.handler.stream.ChunkedFile;
+import io.netty.handler.ssl.SslHandler;
 import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.util.AsciiString;
 import io.netty.util.CharsetUtil;
-
-import java.io.File;
-import java.io.InputStream;
-import java.io.RandomAccessFile;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.util.concurrent.Future;
+import netty.usage.common.ServerTransport;
+import netty.usage.common.StreamingHttpHandler;
+import netty.usage.file.ConditionalRequests.Range;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
- * Simple File Server that serves static files from the current directory
+ * Simple File Server that serves static files from the current directory, and stores
+ * {@code PUT /uploads/<name>} bodies in the upload directory as they stream in. Small files and the
+ * bundled pages are served from a {@link FileCache}; {@code /metrics} reports its hit rate.
  */
 public class FileServer {
     private final int port;
+    private final Path uploadDir = Paths.get(System.getProperty("netty.usage.file.uploadDir", "uploads"));
+    // PUT /uploads/<name> lets any client write to disk, so it is off unless asked for
+    private final boolean uploadsEnabled = Boolean.getBoolean("netty.usage.file.uploads");
+    private final long maxUploadBytes = Long.getLong("netty.usage.file.maxUploadBytes", 100L * 1024 * 1024);
+    private final long cacheBytes = Long.getLong("netty.usage.file.cacheBytes", 64L * 1024 * 1024);
+    private final int cacheMaxFileBytes = Integer.getInteger("netty.usage.file.cacheMaxFileBytes", 1024 * 1024);
+    private final int ioThreads = Integer.getInteger("netty.usage.file.ioThreads", 16);
+    private final long openFileTtlMs = Long.getLong("netty.usage.file.openFileTtlMs", 5000);
+    private final int maxOpenFiles = Integer.getInteger("netty.usage.file.maxOpenFiles", 1024);
+    private final MappedFiles.Mode mapMode = MappedFiles.Mode.valueOf(
+            System.getProperty("netty.usage.file.mapMode", "fallback").toUpperCase(Locale.ROOT));
+    private final long mapBytes = Long.getLong("netty.usage.file.mapBytes", 256L * 1024 * 1024);
+    private final long mapMaxFileBytes = Long.getLong("netty.usage.file.mapMaxFileBytes", 64L * 1024 * 1024);
+    private final int mapAfterRequests = Integer.getInteger("netty.usage.file.mapAfterRequests", 2);
+    private final MetricsRegistry registry = new MetricsRegistry();
 
     public FileServer(int port) {
         this.port = port;
     }
 
     public void start() throws Exception {
-        EventLoopGroup bossGroup = new NioEventLoopGroup(1);
-        EventLoopGroup workerGroup = new NioEventLoopGroup();
+        ServerTransport transport = ServerTransport.fromSystemProperties();
+        EventLoopGroup bossGroup = transport.newBossGroup();
+        EventLoopGroup workerGroup = transport.newWorkerGroup();
+        // Disk work kept off the event loops: the file handlers run here, as do upload writes and
+        // directory listings, so a slow disk stalls at most these threads rather than every connection
+        EventExecutorGroup fileIoGroup = new DefaultEventExecutorGroup(ioThreads);
+        DirectoryWatcher watcher = new DirectoryWatcher();
+        FileCache fileCache = new FileCache(cacheBytes, cacheMaxFileBytes, watcher, registry);
+        OpenFileCache openFiles = new OpenFileCache(openFileTtlMs, maxOpenFiles, watcher, fileIoGroup.next(),
+                registry);
+        MappedFiles mappedFiles = new MappedFiles(mapMode, mapBytes, mapMaxFileBytes, mapAfterRequests, watcher,
+                registry);
+        DirectoryListings directoryListings = new DirectoryListings(fileIoGroup, watcher);
 
         try {
-            ServerBootstrap bootstrap = new ServerBootstrap();
+            ServerBootstrap bootstrap = transport.newServerBootstrap();
             bootstrap.group(bossGroup, workerGroup)
-                    .channel(NioServerSocketChannel.class)
                     .childHandler(new ChannelInitializer<SocketChannel>() {
                         @Override
                         public void initChannel(SocketChannel ch) {
                             ch.pipeline()
                                 .addLast(new HttpServerCodec())
-                                .addLast(new HttpObjectAggregator(65536))
-                                .addLast(new ChunkedWriteHandler())
-                                .addLast(new FileServerHandler());
+                                .addLast(new HttpServerExpectContinueHandler())
+                                // Both on one fileIoGroup thread per channel: stat and open calls, cache
+                                // misses and chunk reads all block there instead of on the event loop
+                                .addLast(fileIoGroup, new ChunkedWriteHandler())
+                                .addLast(fileIoGroup, new FileServerHandler(uploadsEnabled ? uploadDir : null,
+                                        maxUploadBytes, fileIoGroup, fileCache,
+                                        openFiles, mappedFiles, directoryListings, registry));
                         }
                     });
 
-            ChannelFuture future = bootstrap.bind(port).sync();
-            System.out.println("File Server started on http://localhost:" + port);
+            ChannelFuture future = transport.bind(bootstrap, port);
+            System.out.println("File Server started on http://localhost:" + port + " (" + transport + ")");
             System.out.println("Serving files from: " + System.getProperty("user.dir"));
+            if (uploadsEnabled) {
+                System.out.println("Uploads go to: " + uploadDir.toAbsolutePath()
+                        + " (up to " + maxUploadBytes + " bytes each)");
+            }
 
             future.channel().closeFuture().sync();
         } finally {
             workerGroup.shutdownGracefully();
             bossGroup.shutdownGracefully();
+            fileIoGroup.shutdownGracefully();
         }
     }
 
@@ -62,83 +114,105 @@ public class FileServer {
         new FileServer(port).start();
     }
 
-    private static class FileServerHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+    private static class FileServerHandler extends StreamingHttpHandler {
+        private static final String UPLOAD_PREFIX = "/uploads/";
+        private static final String BR = "br";
+        private static final int LISTING_PAGE_SIZE = 1000;
+        private static final int MAX_LISTING_PAGE_SIZE = 10000;
+        private static final String GZIP = "gzip";
+        // Read size for files sent through ChunkedWriteHandler when a file region can't be used
+        private static final int CHUNK_SIZE = Integer.getInteger("netty.usage.file.chunkSize", 8192);
+
+        // Null when uploads are off
+        private final Path uploadDir;
+        private final long maxUploadBytes;
+        private final EventExecutorGroup fileIoGroup;
+        private final FileCache fileCache;
+        private final OpenFileCache openFiles;
+        private final MappedFiles mappedFiles;
+        private final DirectoryListings directoryListings;
+        private final MetricsRegistry registry;
+        private Upload upload;
+
+        FileServerHandler(Path uploadDir, long maxUploadBytes, EventExecutorGroup fileIoGroup, FileCache fileCache,
+                          OpenFileCache openFiles, MappedFiles mappedFiles, DirectoryListings directoryListings,
+                          MetricsRegistry registry) {
+            this.uploadDir = uploadDir;
+            this.maxUploadBytes = maxUploadBytes;
+            this.fileIoGroup = fileIoGroup;
+            this.fileCache = fileCache;
+            this.openFiles = openFiles;
+            this.mappedFiles = mappedFiles;
+            this.directoryListings = directoryListings;
+            this.registry = registry;
+        }
 
+        /**
+         * GETs are answered from the request head; a body sent with one is read and dropped.
+         */
         @Override
-        protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) throws Exception {
+        protected void requestStarted(ChannelHandlerContext ctx, HttpRequest request) throws Exception {
             if (!request.decoderResult().isSuccess()) {
                 sendError(ctx, HttpResponseStatus.BAD_REQUEST);
                 return;
             }
 
+            if (uploadDir != null && request.method() == HttpMethod.PUT
+                    && request.uri().startsWith(UPLOAD_PREFIX)) {
+                String name = request.uri().substring(UPLOAD_PREFIX.length());
+                if (name.isEmpty() || name.contains("/") || name.contains("\\") || name.startsWith(".")) {
+                    sendError(ctx, HttpResponseStatus.BAD_REQUEST);
+                    return;
+                }
+                if (HttpUtil.getContentLength(request, -1L) > maxUploadBytes) {
+                    sendError(ctx, HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE);
+                    return;
+                }
+                upload = new Upload(ctx, uploadDir.resolve(name), fileIoGroup.next(), HttpUtil.isKeepAlive(request));
+                return;
+            }
+
             if (request.method() != HttpMethod.GET) {
                 sendError(ctx, HttpResponseStatus.METHOD_NOT_ALLOWED);
                 return;
             }
 
             String uri = request.uri();
-            if (uri.equals("/")) {
-                // Try to serve index.html from resources/webpages first
-                try {
-                    InputStream indexStream = getClass().getClassLoader().getResourceAsStream("webpages/index.html");
-                    if (indexStream != null) {
-                        byte[] content = indexStream.readAllBytes();
-                        indexStream.close();
-
-                        FullHttpResponse response = new DefaultFullHttpResponse(
-                                HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
-                                Unpooled.copiedBuffer(content));
-
-                        response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/html; charset=UTF-8");
-                        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, content.length);
-
-                        if (HttpUtil.isKeepAlive(request)) {
-                            response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
-                        }
+            if (uri.equals("/metrics")) {
+                FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
+                        HttpResponseStatus.OK, Unpooled.copiedBuffer(registry.scrape(), CharsetUtil.UTF_8));
+                response.headers().set(HttpHeaderNames.CONTENT_TYPE, MetricsRegistry.CONTENT_TYPE);
+                response.headers().set(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
+                sendFull(ctx, request, response);
+                return;
+            }
 
-                        ctx.writeAndFlush(response);
-                        return;
-                    }
-                } catch (Exception e) {
-                    // Fall through to directory listing
+            String route = new QueryStringDecoder(uri).path();
+            if (route.equals("/")) {
+                // Try to serve index.html from resources/webpages first
+                FullHttpResponse index = fileCache.resource("webpages/index.html", "text/html; charset=UTF-8");
+                if (index != null) {
+                    sendEntity(ctx, request, index);
+                    return;
                 }
 
                 // If index.html not found in resources, show directory listing
-                sendDirectoryListing(ctx, ".");
+                sendDirectoryListing(ctx, request, ".");
                 return;
             }
 
             // Handle webpages from resources
             if (uri.startsWith("/") && uri.contains(".html")) {
-                String resourcePath = "webpages" + uri;
-                try {
-                    InputStream resourceStream = getClass().getClassLoader().getResourceAsStream(resourcePath);
-                    if (resourceStream != null) {
-                        byte[] content = resourceStream.readAllBytes();
-                        resourceStream.close();
-
-                        FullHttpResponse response = new DefaultFullHttpResponse(
-                                HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
-                                Unpooled.copiedBuffer(content));
-
-                        response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/html; charset=UTF-8");
-                        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, content.length);
-
-                        if (HttpUtil.isKeepAlive(request)) {
-                            response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
-                        }
-
-                        ctx.writeAndFlush(response);
-                        return;
-                    }
-                } catch (Exception e) {
-                    // Fall through to file system
+                FullHttpResponse page = fileCache.resource("webpages" + uri, "text/html; charset=UTF-8");
+                if (page != null) {
+                    sendEntity(ctx, request, page);
+                    return;
                 }
             }
 
             // Handle directory listing request
-            if (uri.equals("/files")) {
-                sendDirectoryListing(ctx, ".");
+            if (route.equals("/files")) {
+                sendDirectoryListing(ctx, request, ".");
                 return;
             }
 
@@ -146,28 +220,122 @@ public class FileServer {
             String path = uri.substring(1);
             path = path.replaceAll("/+", "/");
 
-            File file = new File(path);
-            if (!file.exists() || file.isHidden() || !file.isFile()) {
+            String contentType = getContentType(path);
+            boolean compressible = isCompressible(contentType);
+            List<String> encodings = compressible ? acceptedEncodings(request) : List.of();
+            Path filePath;
+            try {
+                filePath = Paths.get(path).normalize();
+            } catch (InvalidPathException e) {
+                sendError(ctx, HttpResponseStatus.NOT_FOUND);
+                return;
+            }
+            // Nothing outside the served directory, which is also all the caches will watch
+            if (filePath.isAbsolute() || filePath.startsWith("..")) {
+                sendError(ctx, HttpResponseStatus.NOT_FOUND);
+                return;
+            }
+            path = filePath.toString();
+
+            // Small files are answered from the cache without touching the disk
+            FullHttpResponse cached = fileCache.file(filePath, contentType);
+            if (cached != null) {
+                if (compressible) {
+                    FullHttpResponse encoded = encodedVariant(filePath, path, contentType, encodings, cached);
+                    if (encoded != null) {
+                        cached.release();
+                        cached = encoded;
+                    } else {
+                        cached.headers().set(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING);
+                    }
+                }
+                sendEntity(ctx, request, cached);
+                return;
+            }
+
+            // Opened through the shared descriptors, so a hot file isn't stat'ed and opened per request
+            OpenFileCache.OpenFile file = openFiles.acquire(filePath);
+            if (file == null) {
                 sendError(ctx, HttpResponseStatus.NOT_FOUND);
                 return;
             }
 
-            RandomAccessFile raf = new RandomAccessFile(file, "r");
-            long fileLength = raf.length();
+            // Too big to cache, but a precompressed sibling still goes out zero-copy
+            for (String encoding : encodings) {
+                OpenFileCache.OpenFile sibling = openFiles.acquire(Paths.get(path + extension(encoding)));
+                if (sibling != null) {
+                    file.release();
+                    sendFile(ctx, request, sibling, contentType, encoding);
+                    return;
+                }
+            }
+            sendFile(ctx, request, file, contentType, null);
+        }
 
-            HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
-            HttpUtil.setContentLength(response, fileLength);
+        /**
+         * {@link #sendFile(ChannelHandlerContext, HttpRequest, OpenFileCache.OpenFile, String, String)},
+         * then let go of the caller's reference to {@code file}; the parts written hold their own.
+         */
+        private void sendFile(ChannelHandlerContext ctx, HttpRequest request, OpenFileCache.OpenFile file,
+                              String contentType, String contentEncoding) throws IOException {
+            try {
+                writeFile(ctx, request, file, contentType, contentEncoding);
+            } finally {
+                file.release();
+            }
+        }
 
-            // Set content type based on file extension
-            String contentType = getContentType(file.getName());
-            response.headers().set(HttpHeaderNames.CONTENT_TYPE, contentType);
+        /**
+         * Send {@code file} as {@code contentType}, sent with {@code contentEncoding} when the file is a
+         * precompressed variant, honouring conditional and range headers.
+         */
+        private void writeFile(ChannelHandlerContext ctx, HttpRequest request, OpenFileCache.OpenFile file,
+                               String contentType, String contentEncoding) throws IOException {
+            long fileLength = file.size;
+            String etag = file.etag;
+            String lastModified = file.lastModified;
+            boolean vary = contentEncoding != null || isCompressible(contentType);
+
+            if (ConditionalRequests.isNotModified(request, etag, lastModified)) {
+                FullHttpResponse response = notModified(etag, lastModified);
+                if (vary) {
+                    response.headers().set(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING);
+                }
+                sendFull(ctx, request, response);
+                return;
+            }
+            List<Range> ranges = ConditionalRequests.ranges(request, fileLength, etag, lastModified);
+            if (ranges != null && ranges.isEmpty()) {
+                sendFull(ctx, request, rangeNotSatisfiable(fileLength));
+                return;
+            }
 
+            HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1,
+                    ranges == null ? HttpResponseStatus.OK : HttpResponseStatus.PARTIAL_CONTENT);
+            response.headers()
+                    .set(HttpHeaderNames.ETAG, etag)
+                    .set(HttpHeaderNames.LAST_MODIFIED, lastModified)
+                    .set(HttpHeaderNames.ACCEPT_RANGES, HttpHeaderValues.BYTES);
+            if (contentEncoding != null) {
+                response.headers().set(HttpHeaderNames.CONTENT_ENCODING, contentEncoding);
+            }
+            if (vary) {
+                response.headers().set(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING);
+            }
             if (HttpUtil.isKeepAlive(request)) {
                 response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
             }
 
-            ctx.write(response);
-            ctx.write(new ChunkedFile(raf, 0, fileLength, 8192));
+            // Sent as slices of a shared mapping when it's mapped; otherwise straight from the descriptor
+            MappedFiles.Mapping mapped = mappedFiles.appliesTo(canSendFileRegion(ctx))
+                    ? mappedFiles.mapping(file) : null;
+            try {
+                writeBody(ctx, file, mapped, response, ranges, contentType);
+            } finally {
+                if (mapped != null) {
+                    mapped.release();
+                }
+            }
 
             ChannelFuture lastContentFuture = ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
             if (!HttpUtil.isKeepAlive(request)) {
@@ -175,6 +343,287 @@ public class FileServer {
             }
         }
 
+        /**
+         * The response head and body: the whole file, one range of it, or a multipart/byteranges body.
+         */
+        private void writeBody(ChannelHandlerContext ctx, OpenFileCache.OpenFile file,
+                               MappedFiles.Mapping mapped, HttpResponse response, List<Range> ranges,
+                               String contentType) throws IOException {
+            long fileLength = file.size;
+            if (ranges == null || ranges.size() == 1) {
+                Range range = ranges == null ? new Range(0, fileLength - 1) : ranges.get(0);
+                response.headers().set(HttpHeaderNames.CONTENT_TYPE, contentType);
+                if (ranges != null) {
+                    response.headers().set(HttpHeaderNames.CONTENT_RANGE, range.contentRange(fileLength));
+                }
+                HttpUtil.setContentLength(response, range.length());
+                ctx.write(response);
+                writeFilePart(ctx, file, mapped, range.start, range.length());
+            } else {
+                // multipart/byteranges: each part's headers, then its bytes straight from the file
+                String boundary = newBoundary();
+                List<ByteBuf> partHeaders = new ArrayList<>(ranges.size());
+                long contentLength = 0;
+                for (Range range : ranges) {
+                    ByteBuf partHeader = Unpooled.copiedBuffer(
+                            ConditionalRequests.partHeader(boundary, contentType, range, fileLength),
+                            CharsetUtil.US_ASCII);
+                    partHeaders.add(partHeader);
+                    contentLength += partHeader.readableBytes() + range.length();
+                }
+                ByteBuf closing = Unpooled.copiedBuffer(ConditionalRequests.closingDelimiter(boundary),
+                        CharsetUtil.US_ASCII);
+                contentLength += closing.readableBytes();
+
+                response.headers().set(HttpHeaderNames.CONTENT_TYPE,
+                        "multipart/byteranges; boundary=" + boundary);
+                HttpUtil.setContentLength(response, contentLength);
+                ctx.write(response);
+                for (int i = 0; i < ranges.size(); i++) {
+                    ctx.write(partHeaders.get(i));
+                    writeFilePart(ctx, file, mapped, ranges.get(i).start, ranges.get(i).length());
+                }
+                ctx.write(closing);
+            }
+        }
+
+        @Override
+        protected void bodyChunk(ChannelHandlerContext ctx, ByteBuf chunk) {
+            if (upload != null) {
+                // Chunked bodies have no length to check up front
+                if (upload.received() + chunk.readableBytes() > maxUploadBytes) {
+                    upload.abort();
+                    upload = null;
+                    sendError(ctx, HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE);
+                    return;
+                }
+                upload.write(chunk);
+            }
+        }
+
+        @Override
+        protected void requestFinished(ChannelHandlerContext ctx, LastHttpContent last) {
+            if (upload != null) {
+                // The response comes once the file is in place; hold later requests until then
+                suspendRequests(ctx);
+                upload.finish();
+                upload = null;
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            if (upload != null) {
+                upload.abort();
+                upload = null;
+            }
+            super.channelInactive(ctx);
+        }
+
+        /**
+         * Send a complete 200 response from the cache, or what the request's conditional and range
+         * headers turn it into: a 304, a 416, or a 206 made of slices of the cached body.
+         */
+        private void sendEntity(ChannelHandlerContext ctx, HttpRequest request, FullHttpResponse full) {
+            String etag = full.headers().get(HttpHeaderNames.ETAG);
+            String lastModified = full.headers().get(HttpHeaderNames.LAST_MODIFIED);
+            ByteBuf content = full.content();
+            long length = content.readableBytes();
+
+            if (ConditionalRequests.isNotModified(request, etag, lastModified)) {
+                FullHttpResponse response = notModified(etag, lastModified);
+                copyHeader(full, response, HttpHeaderNames.VARY);
+                full.release();
+                sendFull(ctx, request, response);
+                return;
+            }
+            List<Range> ranges = ConditionalRequests.ranges(request, length, etag, lastModified);
+            if (ranges == null) {
+                full.headers().set(HttpHeaderNames.ACCEPT_RANGES, HttpHeaderValues.BYTES);
+                sendFull(ctx, request, full);
+                return;
+            }
+            if (ranges.isEmpty()) {
+                full.release();
+                sendFull(ctx, request, rangeNotSatisfiable(length));
+                return;
+            }
+
+            String contentType = full.headers().get(HttpHeaderNames.CONTENT_TYPE);
+            ByteBuf body;
+            if (ranges.size() == 1) {
+                Range range = ranges.get(0);
+                body = slice(content, range);
+            } else {
+                String boundary = newBoundary();
+                CompositeByteBuf parts = ctx.alloc().compositeBuffer(ranges.size() * 2 + 1);
+                for (Range range : ranges) {
+                    parts.addComponent(true, Unpooled.copiedBuffer(
+                            ConditionalRequests.partHeader(boundary, contentType, range, length),
+                            CharsetUtil.US_ASCII));
+                    parts.addComponent(true, slice(content, range));
+                }
+                parts.addComponent(true, Unpooled.copiedBuffer(
+                        ConditionalRequests.closingDelimiter(boundary), CharsetUtil.US_ASCII));
+                body = parts;
+                contentType = "multipart/byteranges; boundary=" + boundary;
+            }
+
+            FullHttpResponse partial = new DefaultFullHttpResponse(
+                    HttpVersion.HTTP_1_1, HttpResponseStatus.PARTIAL_CONTENT, body, false);
+            partial.headers()
+                    .set(HttpHeaderNames.CONTENT_TYPE, contentType)
+                    .set(HttpHeaderNames.CONTENT_LENGTH, body.readableBytes())
+                    .set(HttpHeaderNames.ETAG, etag)
+                    .set(HttpHeaderNames.ACCEPT_RANGES, HttpHeaderValues.BYTES);
+            if (lastModified != null) {
+                partial.headers().set(HttpHeaderNames.LAST_MODIFIED, lastModified);
+            }
+            if (ranges.size() == 1) {
+                partial.headers().set(HttpHeaderNames.CONTENT_RANGE, ranges.get(0).contentRange(length));
+            }
+            copyHeader(full, partial, HttpHeaderNames.CONTENT_ENCODING);
+            copyHeader(full, partial, HttpHeaderNames.VARY);
+            full.release();
+            sendFull(ctx, request, partial);
+        }
+
+        private static void copyHeader(HttpResponse from, HttpResponse to, AsciiString name) {
+            String value = from.headers().get(name);
+            if (value != null) {
+                to.headers().set(name, value);
+            }
+        }
+
+        /**
+         * The best encoded form of a cached file the client accepts: a precompressed sibling in the
+         * order of {@code encodings}, else gzip compressed from the cached body, else null.
+         */
+        private FullHttpResponse encodedVariant(Path filePath, String path, String contentType,
+                                                List<String> encodings, FullHttpResponse identity)
+                throws IOException {
+            for (String encoding : encodings) {
+                FullHttpResponse sibling = fileCache.sibling(Paths.get(path + extension(encoding)), contentType,
+                        encoding);
+                if (sibling != null) {
+                    return sibling;
+                }
+            }
+            return encodings.contains(GZIP) ? fileCache.gzipped(filePath, identity) : null;
+        }
+
+        /**
+         * The encodings this server can offer that {@code Accept-Encoding} allows, best first.
+         */
+        private static List<String> acceptedEncodings(HttpRequest request) {
+            String header = request.headers().get(HttpHeaderNames.ACCEPT_ENCODING);
+            if (header == null) {
+                return List.of();
+            }
+            boolean br = false;
+            boolean gzip = false;
+            for (String coding : header.split(",")) {
+                int semicolon = coding.indexOf(';');
+                String name = (semicolon < 0 ? coding : coding.substring(0, semicolon)).trim();
+                if (semicolon >= 0 && isZeroQuality(coding.substring(semicolon + 1))) {
+                    continue;
+                }
+                br |= name.equalsIgnoreCase(BR);
+                gzip |= name.equalsIgnoreCase(GZIP);
+            }
+            if (br && gzip) {
+                return List.of(BR, GZIP);
+            }
+            return br ? List.of(BR) : gzip ? List.of(GZIP) : List.of();
+        }
+
+        private static boolean isZeroQuality(String parameter) {
+            String value = parameter.trim();
+            if (!value.startsWith("q=")) {
+                return false;
+            }
+            try {
+                return Double.parseDouble(value.substring(2)) == 0;
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+
+        private static String extension(String encoding) {
+            return encoding.equals(BR) ? ".br" : ".gz";
+        }
+
+        // Images and archives are compressed already; deflating them again only costs CPU
+        private static boolean isCompressible(String contentType) {
+            return contentType.startsWith("text/") || contentType.startsWith("application/javascript")
+                    || contentType.startsWith("application/json");
+        }
+
+        private static ByteBuf slice(ByteBuf content, Range range) {
+            return content.retainedSlice(content.readerIndex() + (int) range.start, (int) range.length());
+        }
+
+        private static FullHttpResponse notModified(String etag, String lastModified) {
+            FullHttpResponse response = new DefaultFullHttpResponse(
+                    HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_MODIFIED, Unpooled.EMPTY_BUFFER, false);
+            response.headers().set(HttpHeaderNames.ETAG, etag);
+            if (lastModified != null) {
+                response.headers().set(HttpHeaderNames.LAST_MODIFIED, lastModified);
+            }
+            return response;
+        }
+
+        private static FullHttpResponse rangeNotSatisfiable(long length) {
+            FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
+                    HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE, Unpooled.EMPTY_BUFFER, false);
+            response.headers()
+                    .set(HttpHeaderNames.CONTENT_RANGE, "bytes */" + length)
+                    .set(HttpHeaderNames.CONTENT_LENGTH, 0);
+            return response;
+        }
+
+        private static String newBoundary() {
+            return Long.toHexString(ThreadLocalRandom.current().nextLong())
+                    + Long.toHexString(ThreadLocalRandom.current().nextLong());
+        }
+
+        /**
+         * Queue {@code length} bytes of {@code file} from {@code offset}: a slice of {@code mapped} when
+         * the file is mapped, else from the one open descriptor every part shares. Either way the part
+         * holds a reference until written.
+         */
+        private void writeFilePart(ChannelHandlerContext ctx, OpenFileCache.OpenFile file,
+                                   MappedFiles.Mapping mapped, long offset, long length) throws IOException {
+            if (mapped != null) {
+                mapped.write(ctx, offset, length);
+            } else if (canSendFileRegion(ctx)) {
+                ctx.write(file.region(offset, length));
+            } else {
+                ctx.write(file.chunks(offset, length, CHUNK_SIZE));
+            }
+        }
+
+        private void sendFull(ChannelHandlerContext ctx, HttpRequest request, FullHttpResponse response) {
+            if (HttpUtil.isKeepAlive(request)) {
+                response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+                ctx.writeAndFlush(response);
+            } else {
+                ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+            }
+        }
+
+        /**
+         * A file region goes from the page cache to the socket without passing through user space
+         * (sendfile), which only works when nothing in the pipeline has to see or change the bytes.
+         * TLS or compression means reading the file in chunks and letting them transform each one,
+         * as does a transport that can't write file regions at all.
+         */
+        private static boolean canSendFileRegion(ChannelHandlerContext ctx) {
+            ChannelPipeline pipeline = ctx.pipeline();
+            return pipeline.get(SslHandler.class) == null && pipeline.get(HttpContentCompressor.class) == null
+                    && ServerTransport.supportsFileRegion(ctx.channel());
+        }
+
         private void sendError(ChannelHandlerContext ctx, HttpResponseStatus status) {
             FullHttpResponse response = new DefaultFullHttpResponse(
                     HttpVersion.HTTP_1_1, status,
@@ -204,36 +653,78 @@ public class FileServer {
             }
         }
 
-        private void sendDirectoryListing(ChannelHandlerContext ctx, String dir) {
-            File directory = new File(dir);
-            File[] files = directory.listFiles();
+        /**
+         * List {@code dir} as chunked HTML, or JSON with {@code ?format=json}, one page at a time
+         * ({@code ?page=N&size=M}). A listing that is not cached yet is read on a file I/O executor;
+         * later requests on this connection wait until its response has been written.
+         */
+        private void sendDirectoryListing(ChannelHandlerContext ctx, HttpRequest request, String dir) {
+            QueryStringDecoder query = new QueryStringDecoder(request.uri());
+            boolean json = "json".equals(parameter(query, "format"));
+            int pageSize = clamp(parameter(query, "size"), LISTING_PAGE_SIZE, 1, MAX_LISTING_PAGE_SIZE);
+            int page = clamp(parameter(query, "page"), 1, 1, Integer.MAX_VALUE);
+            Path path = Paths.get(dir);
+
+            Future<List<DirectoryListings.Entry>> listing = directoryListings.list(path);
+            if (listing.isDone()) {
+                writeListing(ctx, request, path, listing, json, page, pageSize);
+                return;
+            }
+            suspendRequests(ctx);
+            listing.addListener(f -> ctx.executor().execute(() -> {
+                writeListing(ctx, request, path, listing, json, page, pageSize);
+                resume(ctx);
+            }));
+        }
 
-            StringBuilder html = new StringBuilder();
-            html.append("<!DOCTYPE html>");
-            html.append("<html><head><title>Directory listing</title></head><body>");
-            html.append("<h3>Directory: ").append(directory.getAbsolutePath()).append("</h3>");
-            html.append("<ul>");
+        private void writeListing(ChannelHandlerContext ctx, HttpRequest request, Path dir,
+                                  Future<List<DirectoryListings.Entry>> listing, boolean json, int page,
+                                  int pageSize) {
+            if (!listing.isSuccess()) {
+                listing.cause().printStackTrace();
+                sendError(ctx, HttpResponseStatus.INTERNAL_SERVER_ERROR);
+                return;
+            }
+            List<DirectoryListings.Entry> entries = listing.getNow();
+            HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+            response.headers().set(HttpHeaderNames.CONTENT_TYPE,
+                    json ? "application/json; charset=UTF-8" : "text/html; charset=UTF-8");
+            HttpUtil.setTransferEncodingChunked(response, true);
+            if (HttpUtil.isKeepAlive(request)) {
+                response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+            }
 
-            if (files != null) {
-                for (File file : files) {
-                    String fileName = file.getName();
-                    if (file.isDirectory()) {
-                        html.append("<li><a href=\"").append(fileName).append("/\">").append(fileName).append("/</a></li>");
-                    } else {
-                        html.append("<li><a href=\"").append(fileName).append("\">").append(fileName).append("</a></li>");
-                    }
-                }
+            ctx.write(response);
+            ChannelFuture lastContentFuture = ctx.writeAndFlush(new HttpChunkedInput(json
+                    ? DirectoryListings.json(dir, entries, page, pageSize)
+                    : DirectoryListings.html(dir, entries, page, pageSize)));
+            if (!HttpUtil.isKeepAlive(request)) {
+                lastContentFuture.addListener(ChannelFutureListener.CLOSE);
             }
+        }
 
-            html.append("</ul>");
-            html.append("</body></html>");
+        private static String parameter(QueryStringDecoder query, String name) {
+            List<String> values = query.parameters().get(name);
+            return values == null || values.isEmpty() ? null : values.get(0);
+        }
 
-            FullHttpResponse response = new DefaultFullHttpResponse(
-                    HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
-                    Unpooled.copiedBuffer(html.toString(), CharsetUtil.UTF_8));
+        private static int clamp(String value, int defaultValue, int min, int max) {
+            if (value == null) {
+                return defaultValue;
+            }
+            try {
+                return Math.max(min, Math.min(max, Integer.parseInt(value)));
+            } catch (NumberFormatException e) {
+                return defaultValue;
+            }
+        }
 
-            response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/html; charset=UTF-8");
-            ctx.writeAndFlush(response);
+        private void resume(ChannelHandlerContext ctx) {
+            try {
+                resumeRequests(ctx);
+            } catch (Exception e) {
+                exceptionCaught(ctx, e);
+            }
         }
 
         @Override
@@ -243,5 +734,166 @@ public class FileServer {
                 sendError(ctx, HttpResponseStatus.INTERNAL_SERVER_ERROR);
             }
         }
+
+        /**
+         * One upload's body, written to {@code <name>.part} on a single upload executor (so writes stay
+         * in order) and renamed into place when the body is complete. Event-loop side state is only
+         * touched on the event loop, file side state only on the executor. Reading pauses while more
+         * than {@link #HIGH_WATER_MARK} bytes are waiting to be written.
+         */
+        private class Upload {
+            private static final int HIGH_WATER_MARK = 1024 * 1024;
+            private static final int LOW_WATER_MARK = 256 * 1024;
+
+            private final ChannelHandlerContext ctx;
+            private final Path target;
+            private final EventExecutor executor;
+            private final boolean keepAlive;
+
+            // Event loop only
+            private long pending;
+            private long received;
+            private boolean paused;
+
+            // Executor only
+            private Path partial;
+            private FileChannel channel;
+            private IOException failure;
+
+            Upload(ChannelHandlerContext ctx, Path target, EventExecutor executor, boolean keepAlive) {
+                this.ctx = ctx;
+                this.target = target;
+                this.executor = executor;
+                this.keepAlive = keepAlive;
+                executor.execute(() -> {
+                    try {
+                        Files.createDirectories(target.getParent());
+                        // Unique per upload, so concurrent PUTs of one name never share a file; hidden
+                        // (leading dot) so it isn't served while incomplete
+                        partial = Files.createTempFile(target.getParent(), "." + target.getFileName() + ".",
+                                ".part");
+                        channel = FileChannel.open(partial, StandardOpenOption.WRITE);
+                    } catch (IOException e) {
+                        failure = e;
+                    }
+                });
+            }
+
+            void write(ByteBuf chunk) {
+                int length = chunk.readableBytes();
+                pending += length;
+                received += length;
+                if (!paused && pending > HIGH_WATER_MARK) {
+                    paused = true;
+                    pauseReading(ctx);
+                }
+                chunk.retain();
+                executor.execute(() -> {
+                    try {
+                        if (failure == null) {
+                            while (chunk.isReadable()) {
+                                chunk.readBytes(channel, chunk.readableBytes());
+                            }
+                        }
+                    } catch (IOException e) {
+                        failure = e;
+                    } finally {
+                        chunk.release();
+                        ctx.executor().execute(() -> written(length));
+                    }
+                });
+            }
+
+            long received() {
+                return received;
+            }
+
+            private void written(int length) {
+                pending -= length;
+                if (paused && pending < LOW_WATER_MARK) {
+                    paused = false;
+                    resumeReading(ctx);
+                }
+            }
+
+            void finish() {
+                long size = received;
+                executor.execute(() -> {
+                    closeChannel();
+                    if (failure == null) {
+                        try {
+                            Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING,
+                                    StandardCopyOption.ATOMIC_MOVE);
+                        } catch (IOException e) {
+                            failure = e;
+                        }
+                    }
+                    IOException error = failure;
+                    if (error != null) {
+                        deletePartial();
+                    }
+                    ctx.executor().execute(() -> finished(size, error));
+                });
+            }
+
+            private void finished(long size, IOException error) {
+                if (error != null) {
+                    error.printStackTrace();
+                    sendError(ctx, HttpResponseStatus.INTERNAL_SERVER_ERROR);
+                    return;
+                }
+                sendCreated(size);
+                resume(ctx);
+            }
+
+            private void sendCreated(long size) {
+                FullHttpResponse response = new DefaultFullHttpResponse(
+                        HttpVersion.HTTP_1_1, HttpResponseStatus.CREATED,
+                        Unpooled.copiedBuffer("Stored " + size + " bytes\n", CharsetUtil.UTF_8));
+                response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/plain; charset=UTF-8");
+                response.headers().set(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
+                if (keepAlive) {
+                    response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+                    ctx.writeAndFlush(response);
+                } else {
+                    ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+                }
+            }
+
+            /**
+             * The connection went away mid-body: drop what was written so far.
+             */
+            void abort() {
+                executor.execute(() -> {
+                    closeChannel();
+                    deletePartial();
+                });
+            }
+
+            private void closeChannel() {
+                if (channel == null) {
+                    return;
+                }
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+                channel = null;
+            }
+
+            private void deletePartial() {
+                if (partial == null) {
+                    return;
+                }
+                try {
+                    Files.deleteIfExists(partial);
+                } catch (IOException e) {
+                    // Best effort; a hidden leftover is never served
+                }
+            }
+        }
     }
 }
@@ -0,0 +1,62 @@
+package netty.usage.file;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * One-shot gzip for bodies going into the {@link FileCache}. Deflaters hold native zlib state that is
+ * costly to set up and only freed by {@link Deflater#end()}, so a small pool of them is reused across
+ * the event loops instead of making one per file.
+ */
+final class Gzip {
+    private static final int LEVEL = Integer.getInteger("netty.usage.file.gzipLevel", 6);
+    private static final BlockingQueue<Deflater> POOL =
+            new ArrayBlockingQueue<>(Runtime.getRuntime().availableProcessors() * 2);
+    // ID1 ID2 CM=deflate FLG MTIME(4) XFL OS=unknown
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private Gzip() {
+    }
+
+    static byte[] compress(ByteBuf content) {
+        Deflater deflater = POOL.poll();
+        if (deflater == null) {
+            deflater = new Deflater(LEVEL, true);
+        }
+        try {
+            int length = content.readableBytes();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length / 3 + 64);
+            out.write(HEADER, 0, HEADER.length);
+
+            CRC32 crc = new CRC32();
+            crc.update(content.nioBuffer());
+            deflater.setInput(content.nioBuffer());
+            deflater.finish();
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+
+            writeIntLE(out, (int) crc.getValue());
+            writeIntLE(out, length);
+            return out.toByteArray();
+        } finally {
+            deflater.reset();
+            if (!POOL.offer(deflater)) {
+                deflater.end();
+            }
+        }
+    }
+
+    private static void writeIntLE(ByteArrayOutputStream out, int value) {
+        out.write(value);
+        out.write(value >>> 8);
+        out.write(value >>> 16);
+        out.write(value >>> 24);
+    }
+}
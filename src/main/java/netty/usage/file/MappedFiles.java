@@ -0,0 +1,220 @@
+package netty.usage.file;
+
+import common.metrics.Counter;
+import common.metrics.MetricsRegistry;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.AbstractReferenceCounted;
+import io.netty.util.ReferenceCounted;
+import io.netty.util.internal.PlatformDependent;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Memory-mapped copies of frequently requested files too big for the {@link FileCache}, for sending
+ * as {@link ByteBuf} slices when bytes have to pass through user space anyway (TLS, compression, or a
+ * transport that can't {@code sendfile}): slices of a mapping need no per-chunk read into a buffer,
+ * and every connection sending the file shares the same pages.
+ *
+ * <p>A file is mapped once it has been asked for {@code mapAfterRequests} times while its descriptor
+ * was open in the {@link OpenFileCache}, and if it fits in {@code maxFileBytes} and the budget of
+ * {@code maxBytes}, least recently used mappings being let go to make room. A {@link Mapping} is
+ * reference counted: the cache holds one reference and each slice being written another, and the file
+ * is unmapped when the last is released rather than whenever the GC gets to the buffer.
+ *
+ * <p>Unmapping early goes through Netty's {@code PlatformDependent}, an internal API with no
+ * compatibility promise. It is only used from {@link #unmap}, and only where Netty can free direct
+ * buffers; if it can't, or the API has changed, mappings are left for the GC to unmap.
+ */
+final class MappedFiles {
+
+    enum Mode {
+        OFF,
+        // Only where a file region can't be sent, which is where mapping saves a copy
+        FALLBACK,
+        // In place of file regions too
+        ALWAYS
+    }
+
+    /**
+     * A file mapped read-only, as it was when its {@code etag} was taken.
+     */
+    static final class Mapping extends AbstractReferenceCounted {
+        private final MappedByteBuffer mapped;
+        // Read-only, so it can't be a buffer that frees its memory itself; this mapping does that
+        private final ByteBuf content;
+        private final String etag;
+
+        Mapping(MappedByteBuffer mapped, String etag) {
+            this.mapped = mapped;
+            this.content = Unpooled.wrappedBuffer(mapped);
+            this.etag = etag;
+        }
+
+        /**
+         * Queue {@code length} bytes from {@code offset} as a slice of the mapping, which stays mapped at
+         * least until the write completes or fails.
+         */
+        void write(ChannelHandlerContext ctx, long offset, long length) {
+            retain();
+            ctx.write(content.retainedSlice((int) offset, (int) length)).addListener(future -> release());
+        }
+
+        int size() {
+            return content.capacity();
+        }
+
+        @Override
+        protected void deallocate() {
+            content.release();
+            unmap(mapped);
+        }
+
+        @Override
+        public ReferenceCounted touch(Object hint) {
+            return this;
+        }
+    }
+
+    private static final boolean CAN_UNMAP = canUnmap();
+
+    private final Mode mode;
+    private final long maxBytes;
+    private final long maxFileBytes;
+    private final int mapAfterRequests;
+    private final DirectoryWatcher watcher;
+    private final DirectoryWatcher.Listener changeListener = this::fileChanged;
+    // Access-ordered, so iteration starts at the least recently used mapping
+    private final LinkedHashMap<Path, Mapping> mappings = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+    private final Counter maps;
+    private final Counter unmaps;
+
+    MappedFiles(Mode mode, long maxBytes, long maxFileBytes, int mapAfterRequests, DirectoryWatcher watcher,
+                MetricsRegistry registry) {
+        this.mode = maxBytes > 0 ? mode : Mode.OFF;
+        this.maxBytes = maxBytes;
+        // A ByteBuf is indexed by int
+        this.maxFileBytes = Math.min(maxFileBytes, Integer.MAX_VALUE);
+        this.mapAfterRequests = mapAfterRequests;
+        this.watcher = watcher;
+        this.maps = registry.counter("netty_file_maps_total", "Files memory-mapped for sending");
+        this.unmaps = registry.counter("netty_file_map_evictions_total",
+                "Mappings let go for the budget or because the file changed");
+        registry.gauge("netty_file_mapped_bytes", "Bytes of files held mapped", this::mappedBytes);
+    }
+
+    /**
+     * Whether to send mapped slices on a channel that {@code canSendFileRegion} or not.
+     */
+    boolean appliesTo(boolean canSendFileRegion) {
+        return mode == Mode.ALWAYS || (mode == Mode.FALLBACK && !canSendFileRegion);
+    }
+
+    /**
+     * The whole of {@code file} mapped, with a reference for the caller to release, or null when it
+     * isn't mapped and shouldn't be yet. Maps on a miss, so call it off the event loop.
+     */
+    Mapping mapping(OpenFileCache.OpenFile file) throws IOException {
+        if (file.size == 0 || file.size > maxFileBytes || file.size > maxBytes) {
+            return null;
+        }
+        Path key = file.path;
+        synchronized (this) {
+            Mapping mapping = mappings.get(key);
+            if (mapping != null) {
+                if (mapping.etag.equals(file.etag)) {
+                    return (Mapping) mapping.retain();
+                }
+                // The open file cache saw a newer version than the one mapped
+                remove(key);
+            }
+        }
+        if (file.requests() < mapAfterRequests) {
+            return null;
+        }
+
+        watcher.watch(key.getParent(), changeListener);
+        MappedByteBuffer mapped = file.map();
+        // Fault the pages in here rather than on the event loop that writes them
+        mapped.load();
+        Mapping mapping = new Mapping(mapped, file.etag);
+
+        synchronized (this) {
+            Mapping raced = mappings.get(key);
+            if (raced != null) {
+                if (raced.etag.equals(file.etag)) {
+                    // Another request mapped it meanwhile; keep that one
+                    mapping.release();
+                    return (Mapping) raced.retain();
+                }
+                remove(key);
+            }
+            maps.increment();
+            Iterator<Mapping> eldest = mappings.values().iterator();
+            while (totalBytes + file.size > maxBytes && eldest.hasNext()) {
+                Mapping evicted = eldest.next();
+                eldest.remove();
+                letGo(evicted);
+            }
+            mappings.put(key, mapping);
+            totalBytes += file.size;
+            return (Mapping) mapping.retain();
+        }
+    }
+
+    private void fileChanged(Path dir, Path file) {
+        synchronized (this) {
+            Iterator<Map.Entry<Path, Mapping>> iterator = mappings.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<Path, Mapping> entry = iterator.next();
+                if (file == null ? entry.getKey().getParent().equals(dir) : entry.getKey().equals(file)) {
+                    iterator.remove();
+                    letGo(entry.getValue());
+                }
+            }
+        }
+    }
+
+    // Callers hold the lock
+    private void remove(Path key) {
+        letGo(mappings.remove(key));
+    }
+
+    private void letGo(Mapping mapping) {
+        totalBytes -= mapping.size();
+        unmaps.increment();
+        // Unmapped now, or once the last slice being written is done with
+        mapping.release();
+    }
+
+    private synchronized long mappedBytes() {
+        return totalBytes;
+    }
+
+    // Netty frees direct buffers with Unsafe's cleaner, so without Unsafe it would do nothing
+    private static boolean canUnmap() {
+        try {
+            return PlatformDependent.hasUnsafe();
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+
+    private static void unmap(MappedByteBuffer mapped) {
+        if (!CAN_UNMAP) {
+            return;
+        }
+        try {
+            PlatformDependent.freeDirectBuffer(mapped);
+        } catch (LinkageError e) {
+            // The internal API changed; the GC unmaps it once it is unreachable
+        }
+    }
+}
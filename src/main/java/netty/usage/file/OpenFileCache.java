@@ -0,0 +1,277 @@
+package netty.usage.file;
+
+import common.metrics.Counter;
+import common.metrics.MetricsRegistry;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.channel.FileRegion;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.handler.stream.ChunkedNioFile;
+import io.netty.util.AbstractReferenceCounted;
+import io.netty.util.ReferenceCounted;
+import io.netty.util.concurrent.EventExecutor;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Open descriptors for files too big for the {@link FileCache}, shared between requests so a hot file
+ * is opened and stat'ed once rather than per request.
+ *
+ * <p>Each {@link OpenFile} is reference counted: the cache holds one reference, and every region or
+ * chunked input sent from it holds another, so the descriptor closes only when the cache has let go
+ * of it and the last send has finished. Entries are let go after a TTL even without a change event,
+ * since network file systems don't report changes made on other hosts, and the least recently used
+ * is let go when too many are open.
+ */
+final class OpenFileCache {
+
+    /**
+     * An open file and what its stat said when it was opened.
+     */
+    static final class OpenFile extends AbstractReferenceCounted {
+        final Path path;
+        private final FileChannel channel;
+        private final long openedNanos;
+        private final AtomicInteger requests = new AtomicInteger();
+        final long size;
+        final String etag;
+        final String lastModified;
+
+        OpenFile(Path path, FileChannel channel, BasicFileAttributes attributes) {
+            this.path = path;
+            this.channel = channel;
+            this.openedNanos = System.nanoTime();
+            this.size = attributes.size();
+            long modified = attributes.lastModifiedTime().toMillis();
+            this.etag = ConditionalRequests.etag(size, modified);
+            this.lastModified = ConditionalRequests.lastModified(modified);
+        }
+
+        /**
+         * How many times this file has been acquired since it was opened.
+         */
+        int requests() {
+            return requests.get();
+        }
+
+        MappedByteBuffer map() throws IOException {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+
+        /**
+         * A region of this file for zero-copy sends; it holds a reference until written.
+         */
+        FileRegion region(long position, long count) {
+            retain();
+            return new SharedFileRegion(this, position, count);
+        }
+
+        /**
+         * A chunked read of this file for when a region can't be sent; it holds a reference until closed.
+         */
+        ChunkedInput<ByteBuf> chunks(long position, long count, int chunkSize) throws IOException {
+            retain();
+            try {
+                return new SharedChunkedFile(this, position, count, chunkSize);
+            } catch (IOException e) {
+                release();
+                throw e;
+            }
+        }
+
+        @Override
+        protected void deallocate() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing was written through it
+            }
+        }
+
+        @Override
+        public ReferenceCounted touch(Object hint) {
+            return this;
+        }
+    }
+
+    // DefaultFileRegion closes its channel when released; this one gives back its reference instead
+    private static final class SharedFileRegion extends DefaultFileRegion {
+        private final OpenFile file;
+
+        SharedFileRegion(OpenFile file, long position, long count) {
+            super(file.channel, position, count);
+            this.file = file;
+        }
+
+        @Override
+        protected void deallocate() {
+            file.release();
+        }
+    }
+
+    // Likewise for ChunkedNioFile, which reads with positional reads and so can share the channel
+    private static final class SharedChunkedFile extends ChunkedNioFile {
+        private final OpenFile file;
+        private boolean closed;
+
+        SharedChunkedFile(OpenFile file, long position, long count, int chunkSize) throws IOException {
+            super(file.channel, position, count, chunkSize);
+            this.file = file;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                file.release();
+            }
+        }
+    }
+
+    private final long ttlNanos;
+    private final int maxOpenFiles;
+    private final DirectoryWatcher watcher;
+    private final DirectoryWatcher.Listener changeListener = this::fileChanged;
+    // Access-ordered, so iteration starts at the least recently used file
+    private final LinkedHashMap<Path, OpenFile> files = new LinkedHashMap<>(64, 0.75f, true);
+    private final Counter opens;
+
+    OpenFileCache(long ttlMs, int maxOpenFiles, DirectoryWatcher watcher, EventExecutor sweeper,
+                  MetricsRegistry registry) {
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMs);
+        this.maxOpenFiles = maxOpenFiles;
+        this.watcher = watcher;
+        this.opens = registry.counter("netty_file_opens_total", "Files opened for sending");
+        registry.gauge("netty_file_open_files", "Descriptors held by the open file cache", this::openFiles);
+        sweeper.scheduleWithFixedDelay(this::closeExpired, ttlMs, ttlMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * The open file at {@code path} with a reference for the caller to release, or null if there is
+     * no regular, visible file there. Blocks on the file system on a miss, so call it off the event loop.
+     */
+    OpenFile acquire(Path path) throws IOException {
+        Path file = path.toAbsolutePath().normalize();
+        synchronized (this) {
+            OpenFile cached = files.get(file);
+            if (cached != null) {
+                if (System.nanoTime() - cached.openedNanos < ttlNanos) {
+                    cached.requests.incrementAndGet();
+                    return (OpenFile) cached.retain();
+                }
+                files.remove(file);
+                cached.release();
+            }
+        }
+
+        // Opened outside the lock: on a slow disk this is exactly the call that takes time
+        BasicFileAttributes attributes = regularFileAttributes(file);
+        if (attributes == null) {
+            return null;
+        }
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        OpenFile opened = new OpenFile(file, channel, attributes);
+        opens.increment();
+        // Only directories holding a file that was found get watched
+        try {
+            watcher.watch(file.getParent(), changeListener);
+        } catch (NoSuchFileException | NotDirectoryException e) {
+            opened.release();
+            return null;
+        }
+        // A change between the stat and the watch wasn't reported: answer with what was opened, uncached
+        BasicFileAttributes current = regularFileAttributes(file);
+        if (current == null || current.size() != attributes.size()
+                || !current.lastModifiedTime().equals(attributes.lastModifiedTime())) {
+            opened.requests.incrementAndGet();
+            return opened;
+        }
+
+        synchronized (this) {
+            OpenFile previous = files.put(file, opened);
+            if (previous != null) {
+                previous.release();
+            }
+            Iterator<OpenFile> eldest = files.values().iterator();
+            while (files.size() > maxOpenFiles && eldest.hasNext()) {
+                OpenFile evicted = eldest.next();
+                if (evicted != opened) {
+                    eldest.remove();
+                    evicted.release();
+                }
+            }
+            opened.requests.incrementAndGet();
+            return (OpenFile) opened.retain();
+        }
+    }
+
+    /**
+     * The attributes of {@code file} if it is a regular, visible file, otherwise null, including when
+     * a directory on the way to it is missing or is a file.
+     */
+    static BasicFileAttributes regularFileAttributes(Path file) throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (NoSuchFileException | NotDirectoryException e) {
+            return null;
+        } catch (FileSystemException e) {
+            // A path through a regular file fails with ENOTDIR, which comes without a subclass
+            if (!Files.isDirectory(file.getParent())) {
+                return null;
+            }
+            throw e;
+        }
+        if (!attributes.isRegularFile() || Files.isHidden(file)) {
+            return null;
+        }
+        return attributes;
+    }
+
+    private void fileChanged(Path dir, Path file) {
+        synchronized (this) {
+            Iterator<OpenFile> iterator = files.values().iterator();
+            while (iterator.hasNext()) {
+                OpenFile open = iterator.next();
+                if (file == null ? open.path.getParent().equals(dir) : open.path.equals(file)) {
+                    iterator.remove();
+                    open.release();
+                }
+            }
+        }
+    }
+
+    private synchronized void closeExpired() {
+        long now = System.nanoTime();
+        Iterator<OpenFile> iterator = files.values().iterator();
+        while (iterator.hasNext()) {
+            OpenFile open = iterator.next();
+            if (now - open.openedNanos >= ttlNanos) {
+                iterator.remove();
+                open.release();
+            }
+        }
+    }
+
+    private synchronized long openFiles() {
+        return files.size();
+    }
+}
@@ -1,46 +1,67 @@
 package netty.usage.http;
 
+import common.metrics.Counter;
+import common.metrics.LatencyHistogram;
+import common.metrics.MetricsRegistry;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.http.*;
+import io.netty.handler.flush.FlushConsolidationHandler;
+import io.netty.util.AsciiString;
 import io.netty.util.CharsetUtil;
+import netty.usage.common.DateHeader;
+import netty.usage.common.ServerTransport;
+import netty.usage.common.StreamingHttpHandler;
 
 /**
- * Simple HTTP Server that responds with "Hello World" to all requests
+ * Simple HTTP Server that responds with "Hello World" to all requests, except {@code /metrics},
+ * which returns request counts and latencies in the Prometheus text format, and {@code /plaintext},
+ * a TechEmpower-style fixed "Hello, World!" served from a shared buffer
  */
 public class SimpleHttpServer {
     private final int port;
+    private final MetricsRegistry registry = new MetricsRegistry();
+    private final Counter requests = registry.counter("netty_http_requests_total", "Requests served");
+    private final LatencyHistogram latency = registry.histogram("netty_http_request_seconds",
+            "Time from a request being decoded to its response being handed to the pipeline");
+
+    // Explicit flushes FlushConsolidationHandler lets through as one; 0 leaves it out of the pipeline
+    private final int flushConsolidation = Integer.getInteger("netty.usage.http.flushConsolidation", 0);
 
     public SimpleHttpServer(int port) {
         this.port = port;
     }
 
     public void start() throws Exception {
-        EventLoopGroup bossGroup = new NioEventLoopGroup(1);
-        EventLoopGroup workerGroup = new NioEventLoopGroup();
+        ServerTransport transport = ServerTransport.fromSystemProperties();
+        EventLoopGroup bossGroup = transport.newBossGroup();
+        EventLoopGroup workerGroup = transport.newWorkerGroup();
+        DateHeader date = DateHeader.start(workerGroup);
 
         try {
-            ServerBootstrap bootstrap = new ServerBootstrap();
+            ServerBootstrap bootstrap = transport.newServerBootstrap();
             bootstrap.group(bossGroup, workerGroup)
-                    .channel(NioServerSocketChannel.class)
                     .childHandler(new ChannelInitializer<SocketChannel>() {
                         @Override
                         public void initChannel(SocketChannel ch) {
+                            if (flushConsolidation > 0) {
+                                ch.pipeline().addLast(new FlushConsolidationHandler(flushConsolidation, true));
+                            }
                             ch.pipeline()
                                 .addLast(new HttpServerCodec())
-                                .addLast(new HttpObjectAggregator(65536))
-                                .addLast(new SimpleHttpServerHandler());
+                                .addLast(new HttpServerExpectContinueHandler())
+                                .addLast(new SimpleHttpServerHandler(registry, requests, latency, date));
                         }
                     })
                     .option(ChannelOption.SO_BACKLOG, 128)
                     .childOption(ChannelOption.SO_KEEPALIVE, true);
 
-            ChannelFuture future = bootstrap.bind(port).sync();
-            System.out.println("HTTP Server started on http://localhost:" + port);
+            ChannelFuture future = transport.bind(bootstrap, port);
+            System.out.println("HTTP Server started on http://localhost:" + port + " (" + transport + ")");
 
             future.channel().closeFuture().sync();
         } finally {
@@ -54,29 +75,105 @@ public class SimpleHttpServer {
         new SimpleHttpServer(port).start();
     }
 
-    private static class SimpleHttpServerHandler extends ChannelInboundHandlerAdapter {
+    private static class SimpleHttpServerHandler extends StreamingHttpHandler {
+        private static final AsciiString SERVER = AsciiString.cached("Netty");
+        private static final AsciiString TEXT_PLAIN = AsciiString.cached("text/plain; charset=UTF-8");
+        private static final AsciiString METRICS_TYPE = AsciiString.cached(MetricsRegistry.CONTENT_TYPE);
+        private static final byte[] HELLO = "Hello World from Netty HTTP Server!\nRequest URI: "
+                .getBytes(CharsetUtil.US_ASCII);
+        private static final byte[] METHOD = "\nMethod: ".getBytes(CharsetUtil.US_ASCII);
+        // Shared by every plaintext response: duplicates share the bytes and release is a no-op
+        private static final ByteBuf PLAINTEXT = Unpooled.unreleasableBuffer(Unpooled.directBuffer()
+                .writeBytes("Hello, World!".getBytes(CharsetUtil.US_ASCII)).asReadOnly());
+        private static final AsciiString PLAINTEXT_LENGTH =
+                AsciiString.cached(String.valueOf(PLAINTEXT.readableBytes()));
 
-        @Override
-        public void channelRead(ChannelHandlerContext ctx, Object msg) {
-            if (msg instanceof FullHttpRequest) {
-                FullHttpRequest request = (FullHttpRequest) msg;
+        private final MetricsRegistry registry;
+        private final Counter requests;
+        private final LatencyHistogram latency;
+        private final DateHeader date;
+        private HttpRequest request;
 
-                String responseContent = "Hello World from Netty HTTP Server!\n" +
-                                       "Request URI: " + request.uri() + "\n" +
-                                       "Method: " + request.method() + "\n";
+        SimpleHttpServerHandler(MetricsRegistry registry, Counter requests, LatencyHistogram latency,
+                                DateHeader date) {
+            this.registry = registry;
+            this.requests = requests;
+            this.latency = latency;
+            this.date = date;
+        }
 
+        @Override
+        protected void requestStarted(ChannelHandlerContext ctx, HttpRequest request) {
+            if (request.decoderResult().isFailure()) {
                 FullHttpResponse response = new DefaultFullHttpResponse(
-                        HttpVersion.HTTP_1_1,
-                        HttpResponseStatus.OK,
-                        Unpooled.copiedBuffer(responseContent, CharsetUtil.UTF_8)
-                );
+                        HttpVersion.HTTP_1_1, HttpResponseStatus.BAD_REQUEST, Unpooled.EMPTY_BUFFER, false);
+                response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+                ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+                return;
+            }
+            this.request = request;
+        }
+
+        /**
+         * Any body has been read and dropped by now. Write, but don't flush: a read may carry several
+         * pipelined requests, and their responses go out together when {@link #channelReadComplete}
+         * flushes.
+         */
+        @Override
+        protected void requestFinished(ChannelHandlerContext ctx, LastHttpContent last) {
+            HttpRequest request = this.request;
+            this.request = null;
+            long start = System.nanoTime();
+            requests.increment();
 
-                response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/plain; charset=UTF-8");
-                response.headers().set(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
-                response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+            String uri = request.uri();
+            FullHttpResponse response;
+            if (uri.equals("/plaintext")) {
+                response = newResponse(PLAINTEXT.duplicate(), TEXT_PLAIN);
+                response.headers().set(HttpHeaderNames.CONTENT_LENGTH, PLAINTEXT_LENGTH);
+            } else if (uri.equals("/metrics") && request.method() == HttpMethod.GET) {
+                ByteBuf body = ByteBufUtil.writeUtf8(ctx.alloc(), registry.scrape());
+                response = newResponse(body, METRICS_TYPE);
+                response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, body.readableBytes());
+            } else {
+                AsciiString method = request.method().asciiName();
+                ByteBuf body = ctx.alloc().buffer(HELLO.length + uri.length() + METHOD.length
+                        + method.length() + 1);
+                body.writeBytes(HELLO);
+                ByteBufUtil.writeUtf8(body, uri);
+                body.writeBytes(METHOD);
+                ByteBufUtil.writeAscii(body, method);
+                body.writeByte('\n');
+                response = newResponse(body, TEXT_PLAIN);
+                response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, body.readableBytes());
+            }
 
-                ctx.writeAndFlush(response);
+            if (HttpUtil.isKeepAlive(request)) {
+                if (request.protocolVersion() == HttpVersion.HTTP_1_0) {
+                    response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+                }
+                ctx.write(response, ctx.voidPromise());
+            } else {
+                response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+                ctx.write(response).addListener(ChannelFutureListener.CLOSE);
             }
+            latency.recordSince(start);
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) {
+            ctx.flush();
+        }
+
+        private FullHttpResponse newResponse(ByteBuf body, AsciiString contentType) {
+            // Header names and values are constants, so skip per-header validation
+            FullHttpResponse response = new DefaultFullHttpResponse(
+                    HttpVersion.HTTP_1_1, HttpResponseStatus.OK, body, false);
+            response.headers()
+                    .set(HttpHeaderNames.CONTENT_TYPE, contentType)
+                    .set(HttpHeaderNames.SERVER, SERVER)
+                    .set(HttpHeaderNames.DATE, date.get());
+            return response;
         }
 
         @Override
@@ -1,15 +1,20 @@
 package netty.usage.websocket;
 
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.EmptyHttpHeaders;
 import io.netty.handler.codec.http.FullHttpRequest;
-import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpServerCodec;
 import io.netty.handler.codec.http.websocketx.*;
 import io.netty.handler.stream.ChunkedWriteHandler;
+import netty.usage.common.ServerTransport;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * WebSocket Server that echoes back messages received from WebSocket clients
@@ -22,26 +27,25 @@ public class WebSocketServer {
     }
 
     public void start() throws Exception {
-        EventLoopGroup bossGroup = new NioEventLoopGroup(1);
-        EventLoopGroup workerGroup = new NioEventLoopGroup();
+        ServerTransport transport = ServerTransport.fromSystemProperties();
+        EventLoopGroup bossGroup = transport.newBossGroup();
+        EventLoopGroup workerGroup = transport.newWorkerGroup();
 
         try {
-            ServerBootstrap bootstrap = new ServerBootstrap();
+            ServerBootstrap bootstrap = transport.newServerBootstrap();
             bootstrap.group(bossGroup, workerGroup)
-                    .channel(NioServerSocketChannel.class)
                     .childHandler(new ChannelInitializer<SocketChannel>() {
                         @Override
                         public void initChannel(SocketChannel ch) {
                             ch.pipeline()
                                 .addLast(new HttpServerCodec())
-                                .addLast(new HttpObjectAggregator(65536))
                                 .addLast(new ChunkedWriteHandler())
                                 .addLast(new WebSocketServerHandler(port));
                         }
                     });
 
-            ChannelFuture future = bootstrap.bind(port).sync();
-            System.out.println("WebSocket Server started on ws://localhost:" + port + "/ws");
+            ChannelFuture future = transport.bind(bootstrap, port);
+            System.out.println("WebSocket Server started on ws://localhost:" + port + "/ws" + " (" + transport + ")");
 
             future.channel().closeFuture().sync();
         } finally {
@@ -56,6 +60,7 @@ public class WebSocketServer {
     }
 
     private static class WebSocketServerHandler extends SimpleChannelInboundHandler<Object> {
+        private static final Logger logger = Logger.getLogger(WebSocketServer.class.getName());
         private WebSocketServerHandshaker handshaker;
         private final int serverPort;
 
@@ -67,22 +72,31 @@ public class WebSocketServer {
         protected void channelRead0(ChannelHandlerContext ctx, Object msg) {
             if (msg instanceof WebSocketFrame) {
                 handleWebSocketFrame(ctx, (WebSocketFrame) msg);
-            } else {
+            } else if (msg instanceof HttpRequest) {
                 // Handle HTTP request for WebSocket upgrade
-                handleHttpRequest(ctx, msg);
+                handleHttpRequest(ctx, (HttpRequest) msg);
             }
+            // Any request body (HttpContent) is dropped and released as it arrives
         }
 
-        private void handleHttpRequest(ChannelHandlerContext ctx, Object msg) {
+        /**
+         * The upgrade only needs the request head, so the handshake runs as soon as it is decoded
+         * rather than after aggregating a body an upgrade request does not carry.
+         */
+        private void handleHttpRequest(ChannelHandlerContext ctx, HttpRequest head) {
+            FullHttpRequest request = new DefaultFullHttpRequest(head.protocolVersion(), head.method(),
+                    head.uri(), Unpooled.EMPTY_BUFFER, head.headers(), EmptyHttpHeaders.INSTANCE);
             WebSocketServerHandshakerFactory wsFactory = new WebSocketServerHandshakerFactory(
                     "ws://localhost:" + serverPort + "/ws", null, false);
-            handshaker = wsFactory.newHandshaker((FullHttpRequest) msg);
+            handshaker = wsFactory.newHandshaker(request);
 
             if (handshaker == null) {
                 WebSocketServerHandshakerFactory.sendUnsupportedVersionResponse(ctx.channel());
             } else {
-                handshaker.handshake(ctx.channel(), (FullHttpRequest) msg);
-                System.out.println("WebSocket connection established");
+                handshaker.handshake(ctx.channel(), request);
+                if (logger.isLoggable(Level.FINE)) {
+                    logger.fine("WebSocket connection established: " + ctx.channel().remoteAddress());
+                }
             }
         }
 
@@ -99,7 +113,9 @@ public class WebSocketServer {
 
             if (frame instanceof TextWebSocketFrame) {
                 String text = ((TextWebSocketFrame) frame).text();
-                System.out.println("Received: " + text);
+                if (logger.isLoggable(Level.FINE)) {
+                    logger.fine("Received: " + text);
+                }
                 ctx.write(new TextWebSocketFrame("Echo: " + text));
             }
         }
@@ -0,0 +1,14 @@
+package tomcat.minitomcat.http;
+
+
+/**
+ * Application code behind a route, the mini Tomcat counterpart of a servlet's {@code service()}.
+ *
+ * <p>Handlers run on a worker thread. The request is a view over the connection's read buffer and
+ * must not be retained after {@code handle} returns.
+ */
+@FunctionalInterface
+public interface Handler {
+
+  void handle(HttpRequest request, HttpResponse response) throws Exception;
+}
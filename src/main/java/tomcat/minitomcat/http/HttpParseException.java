@@ -0,0 +1,21 @@
+package tomcat.minitomcat.http;
+
+
+/**
+ * A malformed or oversized request; carries the status code the connector should answer with
+ * before closing the connection.
+ */
+public class HttpParseException extends Exception {
+  private static final long serialVersionUID = 1L;
+
+  private final int status;
+
+  public HttpParseException(int status, String message) {
+    super(message);
+    this.status = status;
+  }
+
+  public int getStatus() {
+    return status;
+  }
+}
@@ -0,0 +1,337 @@
+package tomcat.minitomcat.http;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ * A parsed request that is a view over the connection's read buffer: the request line and headers
+ * are kept as offsets and only decoded into Strings when they are asked for.
+ *
+ * <p>The view is only valid until the parser moves on to the next request on the connection.
+ */
+public class HttpRequest {
+  private static final int INITIAL_HEADERS = 16;
+  private static final String[] NO_PARAMS = new String[0];
+
+  private ByteBuffer buffer;
+  private int methodStart;
+  private int methodEnd;
+  private int uriStart;
+  private int uriEnd;
+  private int protocolStart;
+  private int protocolEnd;
+  private int[] headerOffsets = new int[INITIAL_HEADERS * 4];
+  private int headerCount;
+  private int bodyStart;
+  private int bodyEnd;
+  private long contentLength = -1;
+  private boolean chunked;
+  private boolean ambiguousFraming;
+
+  private String method;
+  private String uri;
+  private String protocol;
+
+  private String[] pathParamNames = NO_PARAMS;
+  private int[] pathParamOffsets = new int[8];
+  private String allow;
+
+  /**
+   * The request method, e.g. {@code GET}.
+   */
+  public String getMethod() {
+    if (method == null) {
+      method = decode(methodStart, methodEnd);
+    }
+    return method;
+  }
+
+  /**
+   * The request target exactly as sent, including any query string.
+   */
+  public String getUri() {
+    if (uri == null) {
+      uri = decode(uriStart, uriEnd);
+    }
+    return uri;
+  }
+
+  /**
+   * The request target without its query string.
+   */
+  public String getPath() {
+    String target = getUri();
+    int query = target.indexOf('?');
+    return query < 0 ? target : target.substring(0, query);
+  }
+
+  /**
+   * The query string without the leading {@code ?}, or {@code null} if there is none.
+   */
+  public String getQueryString() {
+    String target = getUri();
+    int query = target.indexOf('?');
+    return query < 0 ? null : target.substring(query + 1);
+  }
+
+  /**
+   * The protocol version, {@code HTTP/1.0} or {@code HTTP/1.1}.
+   */
+  public String getProtocol() {
+    if (protocol == null) {
+      protocol = decode(protocolStart, protocolEnd);
+    }
+    return protocol;
+  }
+
+  /**
+   * The value of a path parameter captured by the {@link Router}, e.g. {@code id} for the pattern
+   * {@code /users/{id}}, or {@code *} for a trailing wildcard; {@code null} if there is none.
+   */
+  public String getPathParam(String name) {
+    for (int i = 0; i < pathParamNames.length; i++) {
+      if (pathParamNames[i].equals(name)) {
+        return getUri().substring(pathParamOffsets[i * 2], pathParamOffsets[i * 2 + 1]);
+      }
+    }
+    return null;
+  }
+
+  public int getHeaderCount() {
+    return headerCount;
+  }
+
+  public String getHeaderName(int index) {
+    return decode(headerOffsets[index * 4], headerOffsets[index * 4 + 1]);
+  }
+
+  public String getHeaderValue(int index) {
+    return decode(headerOffsets[index * 4 + 2], headerOffsets[index * 4 + 3]);
+  }
+
+  /**
+   * The value of the first header with this name (case-insensitive), or {@code null}.
+   */
+  public String getHeader(String name) {
+    int index = indexOfHeader(name);
+    return index < 0 ? null : getHeaderValue(index);
+  }
+
+  /**
+   * Whether the named header's comma-separated value list contains {@code token}
+   * (case-insensitive), checked without decoding the value.
+   */
+  public boolean headerContainsToken(String name, String token) {
+    for (int i = 0; i < headerCount; i++) {
+      if (!nameEquals(i, name)) {
+        continue;
+      }
+      int start = headerOffsets[i * 4 + 2];
+      int end = headerOffsets[i * 4 + 3];
+      while (start < end) {
+        int comma = start;
+        while (comma < end && buffer.get(comma) != ',') {
+          comma++;
+        }
+        int tokenStart = start;
+        int tokenEnd = comma;
+        while (tokenStart < tokenEnd && isWhitespace(buffer.get(tokenStart))) {
+          tokenStart++;
+        }
+        while (tokenEnd > tokenStart && isWhitespace(buffer.get(tokenEnd - 1))) {
+          tokenEnd--;
+        }
+        if (regionEqualsIgnoreCase(tokenStart, tokenEnd, token)) {
+          return true;
+        }
+        start = comma + 1;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * HTTP/1.1 connections persist unless the client sends {@code Connection: close}; HTTP/1.0
+   * connections only persist with an explicit {@code Connection: keep-alive}. Neither does one whose
+   * request came with both {@code Transfer-Encoding} and {@code Content-Length}.
+   */
+  public boolean isKeepAlive() {
+    if (ambiguousFraming || headerContainsToken("Connection", "close")) {
+      return false;
+    }
+    return isHttp11() || headerContainsToken("Connection", "keep-alive");
+  }
+
+  public boolean isHttp11() {
+    return protocolEnd - protocolStart == 8 && buffer.get(protocolEnd - 1) == '1';
+  }
+
+  /**
+   * The declared {@code Content-Length}, or -1 when the body is chunked or absent.
+   */
+  public long getContentLength() {
+    return contentLength;
+  }
+
+  public boolean isChunked() {
+    return chunked;
+  }
+
+  /**
+   * The request body (already de-chunked) as a read-only view; no bytes are copied.
+   */
+  public ByteBuffer getBody() {
+    ByteBuffer body = buffer.asReadOnlyBuffer();
+    body.limit(bodyEnd).position(bodyStart);
+    return body.slice();
+  }
+
+  public int getBodyLength() {
+    return bodyEnd - bodyStart;
+  }
+
+  int indexOfHeader(String name) {
+    for (int i = 0; i < headerCount; i++) {
+      if (nameEquals(i, name)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  boolean nameEquals(int index, String name) {
+    return regionEqualsIgnoreCase(headerOffsets[index * 4], headerOffsets[index * 4 + 1], name);
+  }
+
+  private boolean regionEqualsIgnoreCase(int start, int end, String value) {
+    if (end - start != value.length()) {
+      return false;
+    }
+    for (int i = 0; i < value.length(); i++) {
+      if (toLowerCase(buffer.get(start + i)) != toLowerCase((byte) value.charAt(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private String decode(int start, int end) {
+    byte[] bytes = new byte[end - start];
+    buffer.get(start, bytes);
+    return new String(bytes, StandardCharsets.ISO_8859_1);
+  }
+
+  private static byte toLowerCase(byte b) {
+    return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+  }
+
+  private static boolean isWhitespace(byte b) {
+    return b == ' ' || b == '\t';
+  }
+
+  // Offsets are written by the parser as it makes progress
+
+  void reset() {
+    headerCount = 0;
+    contentLength = -1;
+    chunked = false;
+    ambiguousFraming = false;
+    bodyStart = 0;
+    bodyEnd = 0;
+    method = null;
+    uri = null;
+    protocol = null;
+    pathParamNames = NO_PARAMS;
+    allow = null;
+  }
+
+  // Written by the router while matching
+
+  void setPathParam(int index, int start, int end) {
+    if (index * 2 + 1 >= pathParamOffsets.length) {
+      int[] grown = new int[pathParamOffsets.length * 2];
+      System.arraycopy(pathParamOffsets, 0, grown, 0, pathParamOffsets.length);
+      pathParamOffsets = grown;
+    }
+    pathParamOffsets[index * 2] = start;
+    pathParamOffsets[index * 2 + 1] = end;
+  }
+
+  void setPathParamNames(String[] names) {
+    this.pathParamNames = names;
+  }
+
+  /**
+   * Methods allowed on the matched path, for the {@code Allow} header of a 405.
+   */
+  String getAllow() {
+    return allow;
+  }
+
+  void setAllow(String allow) {
+    this.allow = allow;
+  }
+
+  void setBuffer(ByteBuffer buffer) {
+    this.buffer = buffer;
+  }
+
+  void setRequestLine(int methodStart, int methodEnd, int uriStart, int uriEnd,
+      int protocolStart, int protocolEnd) {
+    this.methodStart = methodStart;
+    this.methodEnd = methodEnd;
+    this.uriStart = uriStart;
+    this.uriEnd = uriEnd;
+    this.protocolStart = protocolStart;
+    this.protocolEnd = protocolEnd;
+  }
+
+  void addHeader(int nameStart, int nameEnd, int valueStart, int valueEnd) {
+    if ((headerCount + 1) * 4 > headerOffsets.length) {
+      int[] grown = new int[headerOffsets.length * 2];
+      System.arraycopy(headerOffsets, 0, grown, 0, headerOffsets.length);
+      headerOffsets = grown;
+    }
+    int base = headerCount * 4;
+    headerOffsets[base] = nameStart;
+    headerOffsets[base + 1] = nameEnd;
+    headerOffsets[base + 2] = valueStart;
+    headerOffsets[base + 3] = valueEnd;
+    headerCount++;
+  }
+
+  void setContentLength(long contentLength) {
+    this.contentLength = contentLength;
+  }
+
+  void setChunked(boolean chunked) {
+    this.chunked = chunked;
+  }
+
+  void setAmbiguousFraming() {
+    this.ambiguousFraming = true;
+  }
+
+  void setBody(int bodyStart, int bodyEnd) {
+    this.bodyStart = bodyStart;
+    this.bodyEnd = bodyEnd;
+  }
+
+  /**
+   * Move every offset left by {@code delta} after the parser compacted the buffer.
+   */
+  void shift(int delta) {
+    methodStart -= delta;
+    methodEnd -= delta;
+    uriStart -= delta;
+    uriEnd -= delta;
+    protocolStart -= delta;
+    protocolEnd -= delta;
+    for (int i = 0; i < headerCount * 4; i++) {
+      headerOffsets[i] -= delta;
+    }
+    bodyStart -= delta;
+    bodyEnd -= delta;
+  }
+}
@@ -0,0 +1,458 @@
+package tomcat.minitomcat.http;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * Resumable HTTP/1.x request parser that lives on a connection and picks up where it left off on
+ * every read.
+ *
+ * <p>The parser works directly on the connection's read buffer, which is kept in write mode: bytes
+ * {@code [0, buffer.position())} have been read from the socket. Nothing is copied out of the
+ * buffer; the {@link HttpRequest} records offsets. Chunked bodies are de-chunked in place by sliding
+ * each chunk's data down over the chunk headers. Once a request is {@link Result#COMPLETE} and has
+ * been handled, {@link #recycle()} starts the next one at the first unconsumed byte, which is how
+ * pipelined requests in the same read are picked up.
+ */
+public class HttpRequestParser {
+
+  public enum Result {
+    NEED_MORE,
+    COMPLETE
+  }
+
+  private enum State {
+    REQUEST_LINE,
+    HEADERS,
+    BODY,
+    CHUNK_SIZE,
+    CHUNK_DATA,
+    CHUNK_DATA_END,
+    TRAILERS,
+    COMPLETE
+  }
+
+  private final int maxHeaderSize;
+  private final long maxBodySize;
+  private final HttpRequest request = new HttpRequest();
+
+  private State state = State.REQUEST_LINE;
+  private int requestStart;
+  private int lineStart;
+  private int pos;
+  private int bodyStart;
+  private int bodyEnd;
+  private long remaining;
+
+  public HttpRequestParser(int maxHeaderSize, long maxBodySize) {
+    this.maxHeaderSize = maxHeaderSize;
+    this.maxBodySize = maxBodySize;
+  }
+
+  /**
+   * Parse as far as the buffered bytes allow.
+   *
+   * @param buffer the connection's read buffer, in write mode
+   * @throws HttpParseException if the request is malformed or exceeds the configured limits
+   */
+  public Result parse(ByteBuffer buffer) throws HttpParseException {
+    request.setBuffer(buffer);
+    int end = buffer.position();
+    while (true) {
+      switch (state) {
+        case REQUEST_LINE:
+        case HEADERS:
+        case CHUNK_SIZE:
+        case CHUNK_DATA_END:
+        case TRAILERS: {
+          int lineEnd = findLineEnd(buffer, end);
+          if (lineEnd < 0) {
+            checkHeaderSize(end);
+            closeChunkGap(buffer);
+            return Result.NEED_MORE;
+          }
+          int next = pos + 1;
+          checkHeaderSize(next);
+          parseLine(buffer, lineStart, lineEnd);
+          pos = next;
+          lineStart = next;
+          break;
+        }
+        case BODY: {
+          if (end - bodyStart < remaining) {
+            return Result.NEED_MORE;
+          }
+          bodyEnd = bodyStart + (int) remaining;
+          pos = bodyEnd;
+          lineStart = pos;
+          request.setBody(bodyStart, bodyEnd);
+          state = State.COMPLETE;
+          break;
+        }
+        case CHUNK_DATA: {
+          int available = (int) Math.min(remaining, end - pos);
+          if (available == 0) {
+            closeChunkGap(buffer);
+            return Result.NEED_MORE;
+          }
+          if (bodyEnd != pos) {
+            // Slide chunk data down over the chunk-size lines already consumed
+            for (int i = 0; i < available; i++) {
+              buffer.put(bodyEnd + i, buffer.get(pos + i));
+            }
+          }
+          bodyEnd += available;
+          pos += available;
+          lineStart = pos;
+          remaining -= available;
+          if (remaining == 0) {
+            state = State.CHUNK_DATA_END;
+          }
+          break;
+        }
+        case COMPLETE:
+          return Result.COMPLETE;
+        default:
+          throw new IllegalStateException("Unknown state " + state);
+      }
+    }
+  }
+
+  /**
+   * The request parsed so far; complete once {@link #parse} returned {@link Result#COMPLETE}.
+   */
+  public HttpRequest getRequest() {
+    return request;
+  }
+
+  /**
+   * Offset of the first byte belonging to the request in progress; everything before it has been
+   * fully consumed and may be discarded.
+   */
+  public int getRequestStart() {
+    return requestStart;
+  }
+
+  /**
+   * Forget the completed request and start the next one at the first unconsumed byte.
+   */
+  public void recycle() {
+    state = State.REQUEST_LINE;
+    requestStart = pos;
+    lineStart = pos;
+    request.reset();
+  }
+
+  /**
+   * Drop the consumed prefix {@code [0, getRequestStart())} from the buffer and rebase every offset.
+   *
+   * @param buffer the connection's read buffer, in write mode
+   */
+  public void compact(ByteBuffer buffer) {
+    int delta = requestStart;
+    if (delta == 0) {
+      return;
+    }
+    buffer.flip();
+    buffer.position(delta);
+    buffer.compact();
+    requestStart = 0;
+    lineStart -= delta;
+    pos -= delta;
+    bodyStart -= delta;
+    bodyEnd -= delta;
+    request.shift(delta);
+  }
+
+  /**
+   * Whether no bytes of a new request have been seen yet.
+   */
+  public boolean isIdle(ByteBuffer buffer) {
+    return state == State.REQUEST_LINE && buffer.position() == requestStart;
+  }
+
+  /**
+   * Whether some, but not all, of a request line and header section have been seen.
+   */
+  public boolean isReadingHead(ByteBuffer buffer) {
+    return (state == State.REQUEST_LINE || state == State.HEADERS) && !isIdle(buffer);
+  }
+
+  /**
+   * Advance {@code pos} to the next {@code '\n'} and return the end of the line content (excluding
+   * an optional {@code '\r'}), or -1 if no full line is buffered yet.
+   */
+  private int findLineEnd(ByteBuffer buffer, int end) {
+    while (pos < end) {
+      if (buffer.get(pos) == '\n') {
+        return pos > lineStart && buffer.get(pos - 1) == '\r' ? pos - 1 : pos;
+      }
+      pos++;
+    }
+    return -1;
+  }
+
+  private void checkHeaderSize(int end) throws HttpParseException {
+    if (state == State.REQUEST_LINE || state == State.HEADERS) {
+      if (end - requestStart > maxHeaderSize) {
+        throw new HttpParseException(431, "Request header section exceeds " + maxHeaderSize + " bytes");
+      }
+    } else if (end - lineStart > maxHeaderSize) {
+      throw new HttpParseException(400, "Chunk or trailer line exceeds " + maxHeaderSize + " bytes");
+    }
+  }
+
+  private void parseLine(ByteBuffer buffer, int start, int end) throws HttpParseException {
+    switch (state) {
+      case REQUEST_LINE:
+        if (start == end) {
+          // Tolerate empty lines before the request line (RFC 9112, section 2.2)
+          requestStart = pos + 1;
+          return;
+        }
+        parseRequestLine(buffer, start, end);
+        state = State.HEADERS;
+        return;
+      case HEADERS:
+        if (start == end) {
+          startBody(pos + 1);
+          return;
+        }
+        parseHeader(buffer, start, end);
+        return;
+      case CHUNK_SIZE:
+        parseChunkSize(buffer, start, end);
+        return;
+      case CHUNK_DATA_END:
+        if (start != end) {
+          throw new HttpParseException(400, "Missing CRLF after chunk data");
+        }
+        state = State.CHUNK_SIZE;
+        return;
+      case TRAILERS:
+        // Trailer fields are not exposed; the empty line ends the message
+        if (start == end) {
+          request.setBody(bodyStart, bodyEnd);
+          state = State.COMPLETE;
+        }
+        return;
+      default:
+        throw new IllegalStateException("Not a line state: " + state);
+    }
+  }
+
+  private void parseRequestLine(ByteBuffer buffer, int start, int end) throws HttpParseException {
+    int firstSpace = indexOf(buffer, start, end, (byte) ' ');
+    int lastSpace = lastIndexOf(buffer, start, end, (byte) ' ');
+    if (firstSpace <= start || lastSpace <= firstSpace + 1 || lastSpace == end - 1) {
+      throw new HttpParseException(400, "Malformed request line");
+    }
+    int protocolStart = lastSpace + 1;
+    if (end - protocolStart != 8 || !startsWith(buffer, protocolStart, "HTTP/1.")
+        || (buffer.get(end - 1) != '0' && buffer.get(end - 1) != '1')) {
+      throw new HttpParseException(505, "Unsupported protocol version");
+    }
+    request.setRequestLine(start, firstSpace, firstSpace + 1, lastSpace, protocolStart, end);
+  }
+
+  private void parseHeader(ByteBuffer buffer, int start, int end) throws HttpParseException {
+    byte first = buffer.get(start);
+    if (first == ' ' || first == '\t') {
+      throw new HttpParseException(400, "Obsolete header line folding is not supported");
+    }
+    int colon = indexOf(buffer, start, end, (byte) ':');
+    if (colon <= start) {
+      throw new HttpParseException(400, "Malformed header line");
+    }
+    byte last = buffer.get(colon - 1);
+    if (last == ' ' || last == '\t') {
+      throw new HttpParseException(400, "Whitespace before header colon");
+    }
+    int valueStart = colon + 1;
+    int valueEnd = end;
+    while (valueStart < valueEnd && isWhitespace(buffer.get(valueStart))) {
+      valueStart++;
+    }
+    while (valueEnd > valueStart && isWhitespace(buffer.get(valueEnd - 1))) {
+      valueEnd--;
+    }
+    request.addHeader(start, colon, valueStart, valueEnd);
+  }
+
+  private void startBody(int bodyOffset) throws HttpParseException {
+    bodyStart = bodyOffset;
+    bodyEnd = bodyOffset;
+    if (request.indexOfHeader("Transfer-Encoding") >= 0) {
+      checkTransferEncoding();
+      // Transfer-Encoding overrides any Content-Length (RFC 9112, section 6.3), but a sender of both
+      // may be smuggling a request past something that framed it by the other, so don't reuse the
+      // connection
+      if (request.indexOfHeader("Content-Length") >= 0) {
+        request.setAmbiguousFraming();
+      }
+      request.setChunked(true);
+      state = State.CHUNK_SIZE;
+      return;
+    }
+    long contentLength = parseContentLength();
+    if (contentLength > maxBodySize) {
+      throw new HttpParseException(413, "Request body exceeds " + maxBodySize + " bytes");
+    }
+    if (contentLength <= 0) {
+      request.setContentLength(contentLength < 0 ? -1 : 0);
+      request.setBody(bodyStart, bodyEnd);
+      state = State.COMPLETE;
+      return;
+    }
+    request.setContentLength(contentLength);
+    remaining = contentLength;
+    state = State.BODY;
+  }
+
+  /**
+   * Only {@code chunked} is decoded, and it has to be the last coding and appear once; the body
+   * length can't be known otherwise (RFC 9112, section 6.3).
+   */
+  private void checkTransferEncoding() throws HttpParseException {
+    String codings = null;
+    for (int i = 0; i < request.getHeaderCount(); i++) {
+      if (request.nameEquals(i, "Transfer-Encoding")) {
+        String value = request.getHeaderValue(i);
+        codings = codings == null ? value : codings + "," + value;
+      }
+    }
+    boolean chunked = false;
+    boolean unsupported = false;
+    for (String coding : codings.split(",")) {
+      coding = coding.trim();
+      if (coding.isEmpty()) {
+        continue;
+      }
+      if (chunked) {
+        throw new HttpParseException(400, "chunked is not the final transfer coding");
+      }
+      if (coding.equalsIgnoreCase("chunked")) {
+        chunked = true;
+      } else {
+        unsupported = true;
+      }
+    }
+    if (!chunked) {
+      throw new HttpParseException(400, "chunked is not the final transfer coding");
+    }
+    if (unsupported) {
+      throw new HttpParseException(501, "Unsupported transfer coding: " + codings);
+    }
+  }
+
+  private long parseContentLength() throws HttpParseException {
+    String value = null;
+    for (int i = 0; i < request.getHeaderCount(); i++) {
+      if (!request.nameEquals(i, "Content-Length")) {
+        continue;
+      }
+      String next = request.getHeaderValue(i);
+      if (value != null && !value.equals(next)) {
+        throw new HttpParseException(400, "Conflicting Content-Length headers");
+      }
+      value = next;
+    }
+    if (value == null) {
+      return -1;
+    }
+    // 1*DIGIT: Long.parseLong would also take a sign
+    if (value.isEmpty()) {
+      throw new HttpParseException(400, "Invalid Content-Length: " + value);
+    }
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c < '0' || c > '9') {
+        throw new HttpParseException(400, "Invalid Content-Length: " + value);
+      }
+    }
+    try {
+      return Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      throw new HttpParseException(400, "Content-Length too large: " + value);
+    }
+  }
+
+  private void parseChunkSize(ByteBuffer buffer, int start, int end) throws HttpParseException {
+    long size = 0;
+    int digits = 0;
+    for (int i = start; i < end; i++) {
+      int digit = Character.digit(buffer.get(i), 16);
+      if (digit < 0) {
+        break; // chunk extensions (";name=value") and trailing whitespace are ignored
+      }
+      size = (size << 4) | digit;
+      if (++digits > 15) {
+        throw new HttpParseException(400, "Chunk size too large");
+      }
+    }
+    if (digits == 0) {
+      throw new HttpParseException(400, "Missing chunk size");
+    }
+    if (size == 0) {
+      state = State.TRAILERS;
+      return;
+    }
+    if (bodyEnd - bodyStart + size > maxBodySize) {
+      throw new HttpParseException(413, "Request body exceeds " + maxBodySize + " bytes");
+    }
+    remaining = size;
+    state = State.CHUNK_DATA;
+  }
+
+  /**
+   * While de-chunking, the consumed chunk-size lines leave a gap between the body written so far
+   * and the unparsed bytes. Slide the unparsed tail down so the gap doesn't accumulate in the buffer.
+   */
+  private void closeChunkGap(ByteBuffer buffer) {
+    if (!request.isChunked() || state == State.COMPLETE) {
+      return;
+    }
+    int gap = lineStart - bodyEnd;
+    if (gap <= 0) {
+      return;
+    }
+    int end = buffer.position();
+    for (int i = lineStart; i < end; i++) {
+      buffer.put(i - gap, buffer.get(i));
+    }
+    buffer.position(end - gap);
+    lineStart -= gap;
+    pos -= gap;
+  }
+
+  private static int indexOf(ByteBuffer buffer, int start, int end, byte b) {
+    for (int i = start; i < end; i++) {
+      if (buffer.get(i) == b) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static int lastIndexOf(ByteBuffer buffer, int start, int end, byte b) {
+    for (int i = end - 1; i >= start; i--) {
+      if (buffer.get(i) == b) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static boolean startsWith(ByteBuffer buffer, int start, String prefix) {
+    for (int i = 0; i < prefix.length(); i++) {
+      if (buffer.get(start + i) != prefix.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isWhitespace(byte b) {
+    return b == ' ' || b == '\t';
+  }
+}
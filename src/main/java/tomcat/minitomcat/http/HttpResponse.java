@@ -0,0 +1,144 @@
+package tomcat.minitomcat.http;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Response built by a {@link Handler}. The connector adds {@code Content-Length} and
+ * {@code Connection} when it encodes the response, so handlers only set their own headers.
+ */
+public class HttpResponse {
+  private static final byte[] EMPTY = new byte[0];
+
+  private int status = 200;
+  private final List<String> headers = new ArrayList<>();
+  private byte[] body = EMPTY;
+
+  public int getStatus() {
+    return status;
+  }
+
+  public HttpResponse setStatus(int status) {
+    this.status = status;
+    return this;
+  }
+
+  /**
+   * Set a header, replacing any earlier value with the same name (case-insensitive).
+   */
+  public HttpResponse setHeader(String name, String value) {
+    for (int i = 0; i < headers.size(); i += 2) {
+      if (headers.get(i).equalsIgnoreCase(name)) {
+        headers.set(i + 1, value);
+        return this;
+      }
+    }
+    headers.add(name);
+    headers.add(value);
+    return this;
+  }
+
+  public String getHeader(String name) {
+    for (int i = 0; i < headers.size(); i += 2) {
+      if (headers.get(i).equalsIgnoreCase(name)) {
+        return headers.get(i + 1);
+      }
+    }
+    return null;
+  }
+
+  public HttpResponse setContentType(String contentType) {
+    return setHeader("Content-Type", contentType);
+  }
+
+  public HttpResponse setBody(byte[] body) {
+    this.body = body;
+    return this;
+  }
+
+  /**
+   * Set a UTF-8 text body, defaulting the content type to {@code text/plain}.
+   */
+  public HttpResponse setBody(String body) {
+    if (getHeader("Content-Type") == null) {
+      setContentType("text/plain; charset=UTF-8");
+    }
+    return setBody(body.getBytes(StandardCharsets.UTF_8));
+  }
+
+  public byte[] getBody() {
+    return body;
+  }
+
+  /**
+   * Status line and header section, including {@code Content-Length}, {@code Connection} and the
+   * terminating blank line.
+   */
+  public String encodeHead(boolean keepAlive) {
+    StringBuilder head = new StringBuilder(128);
+    head.append("HTTP/1.1 ").append(status).append(' ').append(reasonPhrase(status)).append("\r\n");
+    for (int i = 0; i < headers.size(); i += 2) {
+      head.append(headers.get(i)).append(": ").append(headers.get(i + 1)).append("\r\n");
+    }
+    head.append("Content-Length: ").append(body.length).append("\r\n");
+    head.append(keepAlive ? "Connection: keep-alive\r\n" : "Connection: close\r\n");
+    head.append("\r\n");
+    return head.toString();
+  }
+
+  /**
+   * Encode the whole response into {@code buffer}, which must have at least
+   * {@code head.length() + getBody().length} bytes remaining.
+   */
+  public void encode(ByteBuffer buffer, String head, boolean includeBody) {
+    // The head is ISO-8859-1, so each char is one byte
+    for (int i = 0; i < head.length(); i++) {
+      buffer.put((byte) head.charAt(i));
+    }
+    if (includeBody) {
+      buffer.put(body);
+    }
+  }
+
+  public static String reasonPhrase(int status) {
+    switch (status) {
+      case 200:
+        return "OK";
+      case 201:
+        return "Created";
+      case 204:
+        return "No Content";
+      case 301:
+        return "Moved Permanently";
+      case 302:
+        return "Found";
+      case 304:
+        return "Not Modified";
+      case 400:
+        return "Bad Request";
+      case 404:
+        return "Not Found";
+      case 405:
+        return "Method Not Allowed";
+      case 408:
+        return "Request Timeout";
+      case 413:
+        return "Content Too Large";
+      case 431:
+        return "Request Header Fields Too Large";
+      case 500:
+        return "Internal Server Error";
+      case 501:
+        return "Not Implemented";
+      case 503:
+        return "Service Unavailable";
+      case 505:
+        return "HTTP Version Not Supported";
+      default:
+        return "Unknown";
+    }
+  }
+}
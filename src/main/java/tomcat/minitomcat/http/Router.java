@@ -0,0 +1,215 @@
+package tomcat.minitomcat.http;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Maps request paths to {@link Handler}s.
+ *
+ * <p>Patterns are compiled into a segment trie when they are registered, so a lookup walks the
+ * request URI in place: no regex, no splitting, no allocation. A pattern is made of
+ * {@code /}-separated segments, each one of:
+ * <ul>
+ *   <li>a static segment, e.g. {@code users}, matched exactly;</li>
+ *   <li>a path parameter, e.g. {@code {id}}, matching any one non-empty segment;</li>
+ *   <li>a trailing wildcard {@code *}, matching the rest of the path (possibly empty).</li>
+ * </ul>
+ * Static segments win over parameters, which win over wildcards; the trie backtracks when a more
+ * specific branch dead-ends. Parameter values are recorded as offsets and read with
+ * {@link HttpRequest#getPathParam(String)}; the wildcard's value is the parameter named {@code *}.
+ *
+ * <p>Routes must be registered before the server starts; lookups are not synchronized with
+ * registration.
+ */
+public class Router {
+  /** Method wildcard: the route answers every method. */
+  public static final String ANY_METHOD = "*";
+
+  private static final Handler NOT_FOUND = (request, response) ->
+      response.setStatus(404).setBody("Not Found");
+
+  private static final Handler METHOD_NOT_ALLOWED = (request, response) ->
+      response.setStatus(405).setHeader("Allow", request.getAllow()).setBody("Method Not Allowed");
+
+  private final Node root = new Node();
+
+  public Router get(String pattern, Handler handler) {
+    return add("GET", pattern, handler);
+  }
+
+  public Router post(String pattern, Handler handler) {
+    return add("POST", pattern, handler);
+  }
+
+  /**
+   * Register {@code handler} for {@code method} (or {@link #ANY_METHOD}) on {@code pattern}.
+   *
+   * @throws IllegalArgumentException if the pattern is malformed or the route is already taken
+   */
+  public Router add(String method, String pattern, Handler handler) {
+    if (!pattern.startsWith("/")) {
+      throw new IllegalArgumentException("Pattern must start with '/': " + pattern);
+    }
+    Node node = root;
+    List<String> paramNames = new ArrayList<>();
+    String[] segments = pattern.substring(1).split("/");
+    for (int i = 0; i < segments.length; i++) {
+      String segment = segments[i];
+      if (segment.isEmpty()) {
+        continue;
+      }
+      if (segment.equals("*")) {
+        if (i != segments.length - 1) {
+          throw new IllegalArgumentException("Wildcard must be the last segment: " + pattern);
+        }
+        if (node.wildcardChild == null) {
+          node.wildcardChild = new Node();
+        }
+        node = node.wildcardChild;
+        paramNames.add("*");
+      } else if (segment.startsWith("{") && segment.endsWith("}")) {
+        if (node.paramChild == null) {
+          node.paramChild = new Node();
+        }
+        node = node.paramChild;
+        paramNames.add(segment.substring(1, segment.length() - 1));
+      } else if (segment.indexOf('{') >= 0 || segment.indexOf('}') >= 0) {
+        throw new IllegalArgumentException("Malformed segment '" + segment + "' in " + pattern);
+      } else {
+        node = node.staticChild(segment);
+      }
+    }
+    node.addHandler(method, handler, paramNames.toArray(new String[0]), pattern);
+    return this;
+  }
+
+  /**
+   * Find the handler for {@code request} and record its path parameters on the request. Never
+   * returns {@code null}: unknown paths get a 404 handler, known paths with the wrong method a 405.
+   */
+  public Handler route(HttpRequest request) {
+    String uri = request.getUri();
+    int end = uri.indexOf('?');
+    if (end < 0) {
+      end = uri.length();
+    }
+    Node node = uri.startsWith("/") ? match(root, uri, 0, end, request, 0) : null;
+    if (node == null) {
+      return NOT_FOUND;
+    }
+    request.setPathParamNames(node.paramNames);
+    Handler handler = node.handlerFor(request.getMethod());
+    if (handler == null) {
+      request.setAllow(node.allow);
+      return METHOD_NOT_ALLOWED;
+    }
+    return handler;
+  }
+
+  /**
+   * Match {@code uri[pos, end)}, where {@code pos} is at a {@code '/'} or at the end.
+   */
+  private static Node match(Node node, String uri, int pos, int end, HttpRequest request,
+      int paramIndex) {
+    int segmentStart = pos + 1;
+    if (pos >= end || segmentStart >= end) {
+      // End of path, or only a trailing slash left
+      if (node.hasHandlers()) {
+        return node;
+      }
+      if (node.wildcardChild != null && node.wildcardChild.hasHandlers()) {
+        request.setPathParam(paramIndex, Math.min(segmentStart, end), end);
+        return node.wildcardChild;
+      }
+      return null;
+    }
+    int segmentEnd = uri.indexOf('/', segmentStart);
+    if (segmentEnd < 0 || segmentEnd > end) {
+      segmentEnd = end;
+    }
+    int length = segmentEnd - segmentStart;
+
+    String[] segments = node.segments;
+    for (int i = 0; i < segments.length; i++) {
+      if (segments[i].length() == length && uri.regionMatches(segmentStart, segments[i], 0, length)) {
+        Node found = match(node.children[i], uri, segmentEnd, end, request, paramIndex);
+        if (found != null) {
+          return found;
+        }
+        break;
+      }
+    }
+    if (node.paramChild != null && length > 0) {
+      request.setPathParam(paramIndex, segmentStart, segmentEnd);
+      Node found = match(node.paramChild, uri, segmentEnd, end, request, paramIndex + 1);
+      if (found != null) {
+        return found;
+      }
+    }
+    if (node.wildcardChild != null && node.wildcardChild.hasHandlers()) {
+      request.setPathParam(paramIndex, segmentStart, end);
+      return node.wildcardChild;
+    }
+    return null;
+  }
+
+  private static final class Node {
+    private String[] segments = new String[0];
+    private Node[] children = new Node[0];
+    private Node paramChild;
+    private Node wildcardChild;
+    private String[] methods = new String[0];
+    private Handler[] handlers = new Handler[0];
+    private String[] paramNames;
+    private String allow;
+
+    Node staticChild(String segment) {
+      for (int i = 0; i < segments.length; i++) {
+        if (segments[i].equals(segment)) {
+          return children[i];
+        }
+      }
+      segments = Arrays.copyOf(segments, segments.length + 1);
+      children = Arrays.copyOf(children, children.length + 1);
+      segments[segments.length - 1] = segment;
+      children[children.length - 1] = new Node();
+      return children[children.length - 1];
+    }
+
+    void addHandler(String method, Handler handler, String[] names, String pattern) {
+      if (paramNames != null && !Arrays.equals(paramNames, names)) {
+        throw new IllegalArgumentException("Conflicting parameter names for " + pattern);
+      }
+      for (String existing : methods) {
+        if (existing.equals(method)) {
+          throw new IllegalArgumentException("Duplicate route " + method + " " + pattern);
+        }
+      }
+      paramNames = names;
+      methods = Arrays.copyOf(methods, methods.length + 1);
+      handlers = Arrays.copyOf(handlers, handlers.length + 1);
+      methods[methods.length - 1] = method;
+      handlers[handlers.length - 1] = handler;
+      allow = String.join(", ", methods);
+    }
+
+    boolean hasHandlers() {
+      return handlers.length > 0;
+    }
+
+    Handler handlerFor(String method) {
+      Handler any = null;
+      for (int i = 0; i < methods.length; i++) {
+        if (methods[i].equals(method)) {
+          return handlers[i];
+        }
+        if (methods[i].equals(ANY_METHOD)) {
+          any = handlers[i];
+        }
+      }
+      return any;
+    }
+  }
+}
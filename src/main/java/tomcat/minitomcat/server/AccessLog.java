@@ -0,0 +1,203 @@
+package tomcat.minitomcat.server;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+
+/**
+ * Request log written off the request path.
+ *
+ * <p>Workers {@link #record} into a ring of preallocated entries: claiming a slot is one CAS and
+ * publishing it one volatile write, and nothing is formatted on the worker. A single background
+ * thread wakes every {@value #FLUSH_INTERVAL_MS} ms, formats everything published since its last
+ * pass in Common Log Format (plus the handler time) and writes it as one batch. When the writer
+ * falls a full ring behind, new entries are dropped and counted rather than blocking a worker.
+ */
+public class AccessLog implements Runnable {
+  private static final Logger logger = Logger.getLogger(AccessLog.class.getName());
+  private static final long FLUSH_INTERVAL_MS = 200;
+  private static final DateTimeFormatter TIMESTAMP =
+      DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.US)
+          .withZone(ZoneId.systemDefault());
+
+  private final Path path;
+  private final Entry[] ring;
+  private final int mask;
+  private final AtomicLong claimed = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private volatile long consumed;
+  private volatile boolean running = true;
+  private volatile Thread writerThread;
+
+  // Writer thread only
+  private final StringBuilder line = new StringBuilder(256);
+  private long cachedSecond = -1;
+  private String cachedTimestamp;
+
+  /**
+   * @param path     file the log is appended to
+   * @param ringSize entries buffered between flushes; rounded up to a power of two
+   */
+  public AccessLog(Path path, int ringSize) {
+    this.path = path;
+    int size = Integer.highestOneBit(Math.max(2, ringSize - 1)) << 1;
+    this.ring = new Entry[size];
+    for (int i = 0; i < size; i++) {
+      ring[i] = new Entry();
+    }
+    this.mask = size - 1;
+  }
+
+  /**
+   * Start the writer thread.
+   */
+  public void start() {
+    Thread thread = new Thread(this, "AccessLogWriter");
+    thread.setDaemon(true);
+    writerThread = thread;
+    thread.start();
+  }
+
+  /**
+   * Queue one served request. Never blocks; drops the entry if the ring is full.
+   */
+  public void record(SocketAddress remote, String method, String uri, String protocol, int status,
+      long bytes, long durationNanos) {
+    long sequence;
+    do {
+      sequence = claimed.get();
+      if (sequence - consumed >= ring.length) {
+        dropped.incrementAndGet();
+        return;
+      }
+    } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+    Entry entry = ring[(int) (sequence & mask)];
+    entry.timeMillis = System.currentTimeMillis();
+    entry.remote = remote;
+    entry.method = method;
+    entry.uri = uri;
+    entry.protocol = protocol;
+    entry.status = status;
+    entry.bytes = bytes;
+    entry.durationNanos = durationNanos;
+    entry.published = sequence;
+  }
+
+  /**
+   * Entries dropped so far because the writer could not keep up.
+   */
+  public long getDroppedCount() {
+    return dropped.get();
+  }
+
+  /**
+   * Stop the writer thread after it has written everything already recorded.
+   */
+  public void close() {
+    running = false;
+    Thread thread = writerThread;
+    if (thread != null) {
+      LockSupport.unpark(thread);
+      try {
+        thread.join(TimeUnit.SECONDS.toMillis(5));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  @Override
+  public void run() {
+    try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8,
+        StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE)) {
+      long reportedDrops = 0;
+      while (running) {
+        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL_MS));
+        drain(writer);
+        long drops = dropped.get();
+        if (drops != reportedDrops) {
+          logger.warning("Access log dropped " + (drops - reportedDrops) + " entries");
+          reportedDrops = drops;
+        }
+      }
+      drain(writer);
+    } catch (IOException e) {
+      logger.warning("Access log stopped, cannot write " + path + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Write every entry published since the last pass, then flush once.
+   */
+  private void drain(BufferedWriter writer) throws IOException {
+    long sequence = consumed;
+    Entry entry = ring[(int) (sequence & mask)];
+    if (entry.published != sequence) {
+      return;
+    }
+    do {
+      format(entry);
+      writer.append(line);
+      entry.remote = null;
+      entry.method = null;
+      entry.uri = null;
+      sequence++;
+      // Hand each slot back as soon as it is formatted so producers are not held up by the write
+      consumed = sequence;
+      entry = ring[(int) (sequence & mask)];
+    } while (entry.published == sequence);
+    writer.flush();
+  }
+
+  private void format(Entry entry) {
+    line.setLength(0);
+    if (entry.remote instanceof InetSocketAddress) {
+      line.append(((InetSocketAddress) entry.remote).getAddress().getHostAddress());
+    } else {
+      line.append('-');
+    }
+    line.append(" - - [").append(timestamp(entry.timeMillis)).append("] \"")
+        .append(entry.method).append(' ').append(entry.uri).append(' ').append(entry.protocol)
+        .append("\" ").append(entry.status).append(' ').append(entry.bytes).append(' ')
+        .append(TimeUnit.NANOSECONDS.toMicros(entry.durationNanos)).append("us\n");
+  }
+
+  private String timestamp(long timeMillis) {
+    long second = timeMillis / 1000;
+    if (second != cachedSecond) {
+      cachedSecond = second;
+      cachedTimestamp = TIMESTAMP.format(Instant.ofEpochSecond(second));
+    }
+    return cachedTimestamp;
+  }
+
+  /**
+   * One ring slot, reused for every request that lands in it.
+   */
+  private static final class Entry {
+    private volatile long published = -1;
+    private long timeMillis;
+    private SocketAddress remote;
+    private String method;
+    private String uri;
+    private String protocol;
+    private int status;
+    private long bytes;
+    private long durationNanos;
+  }
+}
@@ -0,0 +1,182 @@
+package tomcat.minitomcat.server;
+
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Size-classed pool of direct {@link ByteBuffer}s for socket reads and writes.
+ *
+ * <p>Heap buffers passed to {@code SocketChannel.read/write} are copied through a temporary direct
+ * buffer by the JDK on every call; leasing direct buffers from this pool avoids both that copy and
+ * the per-request garbage. Buffers come in power-of-four size classes from 1 KB to 256 KB. Each
+ * thread keeps a small cache per class so the common lease/release pair touches no shared state;
+ * overflow goes to a bounded shared arena. Requests above the largest class get an unpooled buffer
+ * that is simply dropped on release. The per-thread caches can be turned off when workers run on
+ * short-lived virtual threads, where they would never be reused.
+ *
+ * <p>In debug mode every outstanding lease is tracked with the stack trace that took it, releasing a
+ * buffer twice or releasing a foreign buffer throws, and {@link #reportLeaks()} logs what was never
+ * returned.
+ */
+public class BufferPool {
+  private static final Logger logger = Logger.getLogger(BufferPool.class.getName());
+  private static final int MIN_CLASS_SHIFT = 10;
+  private static final int CLASS_COUNT = 5;
+  private static final int LOCAL_CACHE_SIZE = 8;
+
+  private final ConcurrentLinkedQueue<ByteBuffer>[] arena;
+  private final AtomicInteger[] arenaSizes;
+  private final int[] arenaLimits;
+  private final ThreadLocal<LocalCache> localCache;
+  private final boolean debug;
+  private final Map<ByteBuffer, Throwable> leases;
+
+  public BufferPool(long arenaBytes, boolean debug) {
+    this(arenaBytes, debug, true);
+  }
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public BufferPool(long arenaBytes, boolean debug, boolean threadLocalCache) {
+    this.arena = new ConcurrentLinkedQueue[CLASS_COUNT];
+    this.arenaSizes = new AtomicInteger[CLASS_COUNT];
+    this.arenaLimits = new int[CLASS_COUNT];
+    for (int i = 0; i < CLASS_COUNT; i++) {
+      arena[i] = new ConcurrentLinkedQueue<>();
+      arenaSizes[i] = new AtomicInteger();
+      arenaLimits[i] = (int) Math.max(LOCAL_CACHE_SIZE, arenaBytes / CLASS_COUNT / classSize(i));
+    }
+    this.localCache = threadLocalCache ? ThreadLocal.withInitial(LocalCache::new) : null;
+    this.debug = debug;
+    // ByteBuffer.equals/hashCode depend on content, so leases must be tracked by identity
+    this.leases = debug ? new IdentityHashMap<>() : null;
+  }
+
+  /**
+   * Lease a cleared direct buffer with at least {@code minCapacity} bytes. The caller must
+   * {@link #release} it exactly once.
+   */
+  public ByteBuffer lease(int minCapacity) {
+    int sizeClass = sizeClass(minCapacity);
+    ByteBuffer buffer = null;
+    if (sizeClass >= 0) {
+      buffer = localCache != null ? localCache.get().poll(sizeClass) : null;
+      if (buffer == null) {
+        buffer = arena[sizeClass].poll();
+        if (buffer != null) {
+          arenaSizes[sizeClass].decrementAndGet();
+        }
+      }
+      if (buffer == null) {
+        buffer = ByteBuffer.allocateDirect(classSize(sizeClass));
+      }
+    } else {
+      buffer = ByteBuffer.allocateDirect(minCapacity);
+    }
+    if (debug) {
+      synchronized (leases) {
+        leases.put(buffer, new Throwable("Buffer leased by " + Thread.currentThread().getName()));
+      }
+    }
+    return buffer;
+  }
+
+  /**
+   * Return a buffer obtained from {@link #lease}. The buffer must not be used afterwards.
+   */
+  public void release(ByteBuffer buffer) {
+    if (debug) {
+      synchronized (leases) {
+        if (leases.remove(buffer) == null) {
+          throw new IllegalStateException("Buffer released twice or not leased from this pool");
+        }
+      }
+    }
+    int sizeClass = sizeClass(buffer.capacity());
+    if (sizeClass < 0 || classSize(sizeClass) != buffer.capacity()) {
+      return; // Oversized, unpooled buffer: let the GC reclaim it
+    }
+    buffer.clear();
+    if (localCache != null && localCache.get().offer(sizeClass, buffer)) {
+      return;
+    }
+    if (arenaSizes[sizeClass].incrementAndGet() <= arenaLimits[sizeClass]) {
+      arena[sizeClass].offer(buffer);
+    } else {
+      arenaSizes[sizeClass].decrementAndGet();
+    }
+  }
+
+  /**
+   * Number of buffers currently leased; only tracked in debug mode, otherwise -1.
+   */
+  public int getLeasedCount() {
+    if (!debug) {
+      return -1;
+    }
+    synchronized (leases) {
+      return leases.size();
+    }
+  }
+
+  /**
+   * Log every buffer that is still leased, with the stack trace of the lease. Debug mode only.
+   */
+  public void reportLeaks() {
+    if (!debug) {
+      return;
+    }
+    synchronized (leases) {
+      for (Throwable site : leases.values()) {
+        logger.log(Level.WARNING, "LEAK: direct buffer was never released", site);
+      }
+    }
+  }
+
+  /**
+   * Index of the smallest class that fits {@code capacity}, or -1 if it is above the largest class.
+   */
+  private static int sizeClass(int capacity) {
+    for (int i = 0; i < CLASS_COUNT; i++) {
+      if (capacity <= classSize(i)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static int classSize(int sizeClass) {
+    return 1 << (MIN_CLASS_SHIFT + 2 * sizeClass);
+  }
+
+  /**
+   * Per-thread stacks of free buffers, one per size class.
+   */
+  private static final class LocalCache {
+    private final ByteBuffer[][] stacks = new ByteBuffer[CLASS_COUNT][LOCAL_CACHE_SIZE];
+    private final int[] sizes = new int[CLASS_COUNT];
+
+    ByteBuffer poll(int sizeClass) {
+      if (sizes[sizeClass] == 0) {
+        return null;
+      }
+      int top = --sizes[sizeClass];
+      ByteBuffer buffer = stacks[sizeClass][top];
+      stacks[sizeClass][top] = null;
+      return buffer;
+    }
+
+    boolean offer(int sizeClass, ByteBuffer buffer) {
+      if (sizes[sizeClass] == LOCAL_CACHE_SIZE) {
+        return false;
+      }
+      stacks[sizeClass][sizes[sizeClass]++] = buffer;
+      return true;
+    }
+  }
+}
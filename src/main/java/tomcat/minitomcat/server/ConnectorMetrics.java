@@ -0,0 +1,83 @@
+package tomcat.minitomcat.server;
+
+import common.metrics.Counter;
+import common.metrics.LatencyHistogram;
+import common.metrics.MetricsRegistry;
+import java.util.Locale;
+
+
+/**
+ * The connector's counters and per-stage latency histograms, following a request from accept
+ * through the poller, the worker queue, parsing and the handler to the socket write.
+ */
+public class ConnectorMetrics {
+  private final Counter accepted;
+  private final Counter requests;
+  private final Counter rejected;
+  private final Counter[] timeouts;
+  private final LatencyHistogram pollerCycle;
+  private final LatencyHistogram queueWait;
+  private final LatencyHistogram parse;
+  private final LatencyHistogram handle;
+  private final LatencyHistogram write;
+
+  public ConnectorMetrics(MetricsRegistry registry) {
+    this.accepted = registry.counter("minitomcat_connections_accepted_total",
+        "Connections accepted");
+    this.requests = registry.counter("minitomcat_requests_total", "Requests served");
+    this.rejected = registry.counter("minitomcat_connections_rejected_total",
+        "Connections answered with 503 because the worker executor was saturated");
+    TimeoutWheel.Kind[] kinds = TimeoutWheel.Kind.values();
+    this.timeouts = new Counter[kinds.length];
+    for (TimeoutWheel.Kind kind : kinds) {
+      timeouts[kind.ordinal()] = registry.counter("minitomcat_connection_timeouts_total",
+          "kind=\"" + kind.name().toLowerCase(Locale.ROOT) + "\"", "Connections closed by a timeout");
+    }
+    this.pollerCycle = registry.histogram("minitomcat_poller_cycle_seconds",
+        "Time a poller spends after each select expiring timeouts and dispatching ready keys");
+    this.queueWait = registry.histogram("minitomcat_worker_queue_wait_seconds",
+        "Time from a poller dispatching a connection to a worker starting on it");
+    this.parse = registry.histogram("minitomcat_parse_seconds",
+        "Time spent in the parser call that completed a request");
+    this.handle = registry.histogram("minitomcat_handle_seconds",
+        "Time spent routing a request and running its handler");
+    this.write = registry.histogram("minitomcat_write_seconds",
+        "Time spent flushing queued responses to the socket per worker run");
+  }
+
+  public Counter getAccepted() {
+    return accepted;
+  }
+
+  public Counter getRequests() {
+    return requests;
+  }
+
+  public Counter getRejected() {
+    return rejected;
+  }
+
+  Counter getTimeouts(TimeoutWheel.Kind kind) {
+    return timeouts[kind.ordinal()];
+  }
+
+  public LatencyHistogram getPollerCycle() {
+    return pollerCycle;
+  }
+
+  public LatencyHistogram getQueueWait() {
+    return queueWait;
+  }
+
+  public LatencyHistogram getParse() {
+    return parse;
+  }
+
+  public LatencyHistogram getHandle() {
+    return handle;
+  }
+
+  public LatencyHistogram getWrite() {
+    return write;
+  }
+}
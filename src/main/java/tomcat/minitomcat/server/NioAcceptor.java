@@ -2,46 +2,151 @@ package tomcat.minitomcat.server;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 
+/**
+ * Accepts client connections with a blocking {@link ServerSocketChannel#accept()}, so an idle
+ * acceptor parks in the kernel instead of spinning on a {@code null} result.
+ *
+ * <p>When {@code reusePort} is set, each acceptor binds its own listening socket with
+ * {@code SO_REUSEPORT}; the kernel then load-balances incoming connections across all acceptors
+ * bound to the same port, letting the accept rate scale past one thread.
+ *
+ * <p>An accept that fails (typically EMFILE or ENFILE, out of file descriptors) fails again at once
+ * until descriptors are released, so the acceptor backs off, doubling its pause up to a cap, and
+ * logs such errors at most once per interval rather than once per attempt.
+ */
 public class NioAcceptor implements Runnable {
 
   private static final Logger logger = Logger.getLogger(NioAcceptor.class.getName());
+  private static final int BACKLOG = 1024;
+  private static final long MIN_BACKOFF_MS = 10;
+  private static final long MAX_BACKOFF_MS = 1000;
+  private static final long ERROR_LOG_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
   private final int port;
-  private final NioPoller poller;
+  private final NioPollerGroup pollers;
+  private final boolean reusePort;
+  private volatile ServerSocketChannel serverSocketChannel;
   private volatile boolean stopped = false;
+  private long backoffMs;
+  private long lastErrorLogNanos;
+  private int suppressedErrors;
 
-  public NioAcceptor(int port, NioPoller poller) {
+  public NioAcceptor(int port, NioPollerGroup pollers) {
+    this(port, pollers, false);
+  }
+
+  public NioAcceptor(int port, NioPollerGroup pollers, boolean reusePort) {
     this.port = port;
-    this.poller = poller;
+    this.pollers = pollers;
+    this.reusePort = reusePort;
+  }
+
+  /**
+   * Whether this platform lets several listening sockets share a port via {@code SO_REUSEPORT}.
+   */
+  public static boolean isReusePortSupported() {
+    try (ServerSocketChannel channel = ServerSocketChannel.open()) {
+      return channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+    } catch (IOException e) {
+      return false;
+    }
   }
 
   @Override
   public void run() {
     logger.info("NioAcceptor is running...");
-    try {
-      try (ServerSocketChannel serverSocketChannel = ServerSocketChannel.open()) {
-
-        serverSocketChannel.bind(new InetSocketAddress(port));
-        serverSocketChannel.configureBlocking(false);
-        logger.log(Level.INFO, "NioAcceptor started on port {0}", port);
+    try (ServerSocketChannel serverSocketChannel = ServerSocketChannel.open()) {
+      this.serverSocketChannel = serverSocketChannel;
+      serverSocketChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+      if (reusePort) {
+        serverSocketChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+      }
+      serverSocketChannel.bind(new InetSocketAddress(port), BACKLOG);
+      // Blocking mode: accept() parks the thread until a connection arrives
+      serverSocketChannel.configureBlocking(true);
+      logger.log(Level.INFO, "NioAcceptor started on port {0} (reusePort={1})",
+          new Object[]{port, reusePort});
 
-        while (!isStopped()) {
-          SocketChannel clientChannel = serverSocketChannel.accept();
-          if (clientChannel == null) {
-            continue; // No connection accepted, continue polling
+      while (!isStopped()) {
+        SocketChannel clientChannel;
+        try {
+          clientChannel = serverSocketChannel.accept();
+        } catch (ClosedChannelException e) {
+          break; // stop() closed the listening socket
+        } catch (IOException e) {
+          // e.g. EMFILE: keep accepting once descriptors are released instead of dying
+          if (!backOff(e)) {
+            break;
+          }
+          continue;
+        }
+        backoffMs = 0;
+        try {
+          if (logger.isLoggable(Level.FINE)) {
+            logger.fine("Accepted connection from " + clientChannel.getRemoteAddress());
           }
-          logger.info("Accepted connection from " + clientChannel.getRemoteAddress());
           clientChannel.configureBlocking(false);
+          NioPoller poller = pollers.next();
+          poller.getMetrics().getAccepted().increment();
           poller.registerChannel(clientChannel);
+        } catch (IOException e) {
+          logger.warning("Error registering connection: " + e.getMessage());
+          clientChannel.close();
         }
       }
     } catch (IOException e) {
-      logger.warning("Error in NioAcceptor: " + e.getMessage());
+      if (!isStopped()) {
+        logger.warning("Error in NioAcceptor: " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Pause after a failed accept, longer each time it fails in a row, and log the failure unless one
+   * was logged within the last interval.
+   *
+   * @return false if interrupted or stopped while pausing
+   */
+  private boolean backOff(IOException e) {
+    long now = System.nanoTime();
+    if (lastErrorLogNanos == 0 || now - lastErrorLogNanos >= ERROR_LOG_INTERVAL_NANOS) {
+      logger.warning("Error accepting connection: " + e.getMessage()
+          + (suppressedErrors > 0 ? " (" + suppressedErrors + " more since the last report)" : ""));
+      lastErrorLogNanos = now;
+      suppressedErrors = 0;
+    } else {
+      suppressedErrors++;
+    }
+    backoffMs = backoffMs == 0 ? MIN_BACKOFF_MS : Math.min(MAX_BACKOFF_MS, backoffMs * 2);
+    try {
+      Thread.sleep(backoffMs);
+    } catch (InterruptedException interrupted) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    return !isStopped();
+  }
+
+  /**
+   * Stop accepting; closing the listening socket unblocks a pending {@code accept()}.
+   */
+  public void stop() {
+    stopped = true;
+    ServerSocketChannel channel = serverSocketChannel;
+    if (channel != null) {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        logger.warning("Error closing server channel: " + e.getMessage());
+      }
     }
   }
 
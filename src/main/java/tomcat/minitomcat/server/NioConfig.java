@@ -0,0 +1,201 @@
+package tomcat.minitomcat.server;
+
+import java.util.Properties;
+
+
+/**
+ * Connector settings, read once at startup from {@code minitomcat.*} properties, normally the
+ * system properties.
+ */
+public class NioConfig {
+  private final int port;
+  private final int maxWorkers;
+  private final WorkerExecutors.Type executorType;
+  private final int workerQueueSize;
+  private final int acceptors;
+  private final boolean reusePort;
+  private final int pollers;
+  private final NioPollerGroup.Balance pollerBalance;
+  private final int maxKeepAliveRequests;
+  private final long keepAliveTimeoutMs;
+  private final long requestHeaderTimeoutMs;
+  private final long writeTimeoutMs;
+  private final int maxHeaderSize;
+  private final long maxBodySize;
+  private final long bufferPoolArenaBytes;
+  private final boolean bufferPoolDebug;
+  private final int writeHighWatermark;
+  private final int writeLowWatermark;
+  private final String accessLogPath;
+  private final int accessLogRingSize;
+
+  /**
+   * Read settings from {@code properties}, falling back to defaults for missing keys.
+   */
+  public NioConfig(Properties properties) {
+    this.port = intProperty(properties, "minitomcat.port", 8090);
+    this.maxWorkers = intProperty(properties, "minitomcat.maxWorkers", 10);
+    this.executorType = WorkerExecutors.Type.valueOf(
+        properties.getProperty("minitomcat.executor", "FIXED"));
+    this.workerQueueSize = intProperty(properties, "minitomcat.workerQueueSize", 1000);
+    this.acceptors = intProperty(properties, "minitomcat.acceptors", 1);
+    this.reusePort = Boolean.parseBoolean(properties.getProperty("minitomcat.reusePort"));
+    this.pollers = intProperty(properties, "minitomcat.pollers",
+        Runtime.getRuntime().availableProcessors());
+    this.pollerBalance = NioPollerGroup.Balance.valueOf(
+        properties.getProperty("minitomcat.pollerBalance", "ROUND_ROBIN"));
+    this.maxKeepAliveRequests = intProperty(properties, "minitomcat.maxKeepAliveRequests", 100);
+    this.keepAliveTimeoutMs = longProperty(properties, "minitomcat.keepAliveTimeoutMs", 20_000L);
+    this.requestHeaderTimeoutMs = longProperty(properties, "minitomcat.requestHeaderTimeoutMs",
+        10_000L);
+    this.writeTimeoutMs = longProperty(properties, "minitomcat.writeTimeoutMs", 20_000L);
+    this.maxHeaderSize = intProperty(properties, "minitomcat.maxHeaderSize", 8192);
+    this.maxBodySize = longProperty(properties, "minitomcat.maxBodySize", 2L * 1024 * 1024);
+    this.bufferPoolArenaBytes = longProperty(properties, "minitomcat.bufferPool.arenaBytes",
+        32L * 1024 * 1024);
+    this.bufferPoolDebug = Boolean.parseBoolean(
+        properties.getProperty("minitomcat.bufferPool.debug"));
+    this.writeHighWatermark = intProperty(properties, "minitomcat.writeHighWatermark", 64 * 1024);
+    this.writeLowWatermark = Math.min(writeHighWatermark,
+        intProperty(properties, "minitomcat.writeLowWatermark", 32 * 1024));
+    this.accessLogPath = properties.getProperty("minitomcat.accessLog");
+    this.accessLogRingSize = intProperty(properties, "minitomcat.accessLog.ringSize", 8192);
+  }
+
+  public static NioConfig fromSystemProperties() {
+    return new NioConfig(System.getProperties());
+  }
+
+  private static int intProperty(Properties properties, String key, int defaultValue) {
+    String value = properties.getProperty(key);
+    return value == null ? defaultValue : Integer.parseInt(value.trim());
+  }
+
+  private static long longProperty(Properties properties, String key, long defaultValue) {
+    String value = properties.getProperty(key);
+    return value == null ? defaultValue : Long.parseLong(value.trim());
+  }
+
+  public int getPort() {
+    return port;
+  }
+
+  public int getMaxWorkers() {
+    return maxWorkers;
+  }
+
+  public WorkerExecutors.Type getExecutorType() {
+    return executorType;
+  }
+
+  /**
+   * Pending tasks a {@link WorkerExecutors.Type#BOUNDED} executor holds before rejecting with 503.
+   */
+  public int getWorkerQueueSize() {
+    return workerQueueSize;
+  }
+
+  /**
+   * Acceptors > 1 only help with SO_REUSEPORT: threads sharing one listening socket serialize on it.
+   */
+  public int getAcceptors() {
+    return acceptors;
+  }
+
+  public boolean isReusePort() {
+    return reusePort;
+  }
+
+  public int getPollers() {
+    return pollers;
+  }
+
+  public NioPollerGroup.Balance getPollerBalance() {
+    return pollerBalance;
+  }
+
+  /**
+   * Requests served on one connection before it is closed; {@code <= 0} disables keep-alive.
+   */
+  public int getMaxKeepAliveRequests() {
+    return maxKeepAliveRequests;
+  }
+
+  /**
+   * How long a connection may sit idle waiting for its next request.
+   */
+  public long getKeepAliveTimeoutMs() {
+    return keepAliveTimeoutMs;
+  }
+
+  /**
+   * How long a client may take to send a complete request line and headers, however slowly the
+   * bytes trickle in.
+   */
+  public long getRequestHeaderTimeoutMs() {
+    return requestHeaderTimeoutMs;
+  }
+
+  /**
+   * How long queued response bytes may wait for the client to accept any of them.
+   */
+  public long getWriteTimeoutMs() {
+    return writeTimeoutMs;
+  }
+
+  /**
+   * Largest request line plus header section accepted before answering 431.
+   */
+  public int getMaxHeaderSize() {
+    return maxHeaderSize;
+  }
+
+  /**
+   * Largest request body (after de-chunking) accepted before answering 413.
+   */
+  public long getMaxBodySize() {
+    return maxBodySize;
+  }
+
+  /**
+   * Upper bound on free direct buffers kept in the shared arena of the {@link BufferPool}.
+   */
+  public long getBufferPoolArenaBytes() {
+    return bufferPoolArenaBytes;
+  }
+
+  /**
+   * Track every buffer lease so leaks and double releases are reported.
+   */
+  public boolean isBufferPoolDebug() {
+    return bufferPoolDebug;
+  }
+
+  /**
+   * Unflushed response bytes above which a connection stops reading and serving new requests.
+   */
+  public int getWriteHighWatermark() {
+    return writeHighWatermark;
+  }
+
+  /**
+   * Unflushed response bytes at or below which a paused connection resumes reading.
+   */
+  public int getWriteLowWatermark() {
+    return writeLowWatermark;
+  }
+
+  /**
+   * File the access log is appended to, or {@code null} to disable access logging.
+   */
+  public String getAccessLogPath() {
+    return accessLogPath;
+  }
+
+  /**
+   * Requests the {@link AccessLog} buffers between flushes before it starts dropping entries.
+   */
+  public int getAccessLogRingSize() {
+    return accessLogRingSize;
+  }
+}
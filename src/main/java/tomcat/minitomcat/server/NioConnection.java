@@ -1,16 +1,262 @@
 package tomcat.minitomcat.server;
 
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import tomcat.minitomcat.http.HttpParseException;
+import tomcat.minitomcat.http.HttpRequestParser;
 
 
 public class NioConnection {
+  private static final int INITIAL_READ_BUFFER_SIZE = 4096;
+  private static final int MAX_GATHER = 16;
   private final SocketChannel clientChannel;
+  private SocketAddress remoteAddress;
+  private final NioPoller poller;
+  private final HttpRequestParser parser;
+  private final int maxReadBufferSize;
+  private final int writeHighWatermark;
+  private final int writeLowWatermark;
+  private ByteBuffer readBuffer;
+  private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+  private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+  private long pendingBytes;
+  private boolean writePaused;
+  private boolean closeAfterFlush;
+  private SelectionKey selectionKey;
+  private boolean closed;
+  private final TimeoutWheel.Timeout timeout = new TimeoutWheel.Timeout(this);
+  private long requestHeadStart;
+  private int requestCount;
 
-  public NioConnection(SocketChannel clientChannel) {
+  public NioConnection(SocketChannel clientChannel, NioPoller poller, NioConfig config) {
     this.clientChannel = clientChannel;
+    this.poller = poller;
+    this.parser = new HttpRequestParser(config.getMaxHeaderSize(), config.getMaxBodySize());
+    // Headers and body, plus room for one chunk-size line still being parsed
+    this.maxReadBufferSize = (int) Math.min(Integer.MAX_VALUE - 8,
+        2L * config.getMaxHeaderSize() + config.getMaxBodySize());
+    this.writeHighWatermark = config.getWriteHighWatermark();
+    this.writeLowWatermark = config.getWriteLowWatermark();
   }
 
   public SocketChannel getClientChannel() {
     return clientChannel;
   }
+
+  /**
+   * The client's address, looked up once and cached; {@code null} if the channel is already closed.
+   */
+  public SocketAddress getRemoteAddress() {
+    if (remoteAddress == null) {
+      try {
+        remoteAddress = clientChannel.getRemoteAddress();
+      } catch (IOException e) {
+        return null;
+      }
+    }
+    return remoteAddress;
+  }
+
+  public NioPoller getPoller() {
+    return poller;
+  }
+
+  /**
+   * The parser carrying request state across reads; only used by the worker owning the connection.
+   */
+  public HttpRequestParser getParser() {
+    return parser;
+  }
+
+  public ByteBuffer getReadBuffer() {
+    return readBuffer;
+  }
+
+  /**
+   * Make room for the next socket read: lease a buffer from the pool if the connection holds none,
+   * drop already consumed requests and, if a request in progress still fills the buffer, move it to
+   * a buffer of the next size class.
+   *
+   * @return the read buffer, in write mode with space remaining
+   * @throws HttpParseException if the request in progress cannot fit within the configured limits
+   */
+  public ByteBuffer prepareReadBuffer() throws HttpParseException {
+    BufferPool bufferPool = poller.getBufferPool();
+    if (readBuffer == null) {
+      readBuffer = bufferPool.lease(INITIAL_READ_BUFFER_SIZE);
+      return readBuffer;
+    }
+    parser.compact(readBuffer);
+    if (readBuffer.hasRemaining()) {
+      return readBuffer;
+    }
+    if (readBuffer.capacity() >= maxReadBufferSize) {
+      throw new HttpParseException(413, "Request exceeds " + maxReadBufferSize + " bytes");
+    }
+    ByteBuffer grown = bufferPool.lease(
+        (int) Math.min(maxReadBufferSize, 2L * readBuffer.capacity()));
+    readBuffer.flip();
+    grown.put(readBuffer);
+    bufferPool.release(readBuffer);
+    readBuffer = grown;
+    return readBuffer;
+  }
+
+  /**
+   * Give the read buffer back to the pool once every buffered byte has been consumed, so idle
+   * keep-alive connections hold no buffer.
+   */
+  public void releaseReadBufferIfIdle() {
+    if (readBuffer != null && parser.isIdle(readBuffer)) {
+      parser.compact(readBuffer);
+      poller.getBufferPool().release(readBuffer);
+      readBuffer = null;
+    }
+  }
+
+  /**
+   * Queue a response buffer leased from the pool; it is released once fully written.
+   *
+   * @param buffer response bytes, in read mode
+   */
+  public void enqueue(ByteBuffer buffer) {
+    outbound.addLast(buffer);
+    pendingBytes += buffer.remaining();
+    if (pendingBytes > writeHighWatermark) {
+      writePaused = true;
+    }
+  }
+
+  /**
+   * Write as much of the outbound queue as the socket accepts without blocking, using a gathering
+   * write over up to {@value #MAX_GATHER} buffers per call.
+   *
+   * @return whether the queue is now empty
+   */
+  public boolean flush() throws IOException {
+    BufferPool bufferPool = poller.getBufferPool();
+    while (!outbound.isEmpty()) {
+      int count = 0;
+      for (ByteBuffer buffer : outbound) {
+        gather[count++] = buffer;
+        if (count == MAX_GATHER) {
+          break;
+        }
+      }
+      long written = clientChannel.write(gather, 0, count);
+      pendingBytes -= written;
+      for (int i = 0; i < count; i++) {
+        gather[i] = null;
+      }
+      while (!outbound.isEmpty() && !outbound.peekFirst().hasRemaining()) {
+        bufferPool.release(outbound.pollFirst());
+      }
+      if (written == 0) {
+        break; // Socket send buffer is full: wait for OP_WRITE
+      }
+    }
+    if (writePaused && pendingBytes <= writeLowWatermark) {
+      writePaused = false;
+    }
+    return outbound.isEmpty();
+  }
+
+  public boolean hasPendingWrites() {
+    return !outbound.isEmpty();
+  }
+
+  /**
+   * Whether the client is not draining its responses fast enough: set when unflushed bytes exceed
+   * the high watermark, cleared once they fall back to the low watermark. While paused the
+   * connection neither reads nor serves buffered requests.
+   */
+  public boolean isWritePaused() {
+    return writePaused;
+  }
+
+  /**
+   * Close the connection as soon as the outbound queue has been flushed.
+   */
+  public void setCloseAfterFlush() {
+    closeAfterFlush = true;
+  }
+
+  public boolean isCloseAfterFlush() {
+    return closeAfterFlush;
+  }
+
+  /**
+   * Note whether the head of a request is partially buffered, starting the request-header clock
+   * when its first bytes show up; only called by the worker owning the connection, before it
+   * re-arms.
+   */
+  public void trackRequestHead() {
+    if (readBuffer == null || !parser.isReadingHead(readBuffer)) {
+      requestHeadStart = 0;
+    } else if (requestHeadStart == 0) {
+      requestHeadStart = System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * Wall-clock time the head of the request in progress started arriving, or 0 if none is.
+   */
+  public long getRequestHeadStart() {
+    return requestHeadStart;
+  }
+
+  /**
+   * Count one more request served on this connection; only called by the worker owning it.
+   *
+   * @return the number of requests served so far, including this one
+   */
+  public int incrementRequestCount() {
+    requestHeadStart = 0;
+    return ++requestCount;
+  }
+
+  /**
+   * This connection's entry in its poller's {@link TimeoutWheel}; only touched on the poller thread.
+   */
+  TimeoutWheel.Timeout getTimeout() {
+    return timeout;
+  }
+
+  /**
+   * The key this connection is registered under; only read and written on the poller thread.
+   */
+  SelectionKey getSelectionKey() {
+    return selectionKey;
+  }
+
+  void setSelectionKey(SelectionKey selectionKey) {
+    this.selectionKey = selectionKey;
+  }
+
+  /**
+   * Close the channel and release its slot on the owning poller. Idempotent.
+   */
+  public void close() throws IOException {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+    }
+    poller.connectionClosed();
+    BufferPool bufferPool = poller.getBufferPool();
+    if (readBuffer != null) {
+      bufferPool.release(readBuffer);
+      readBuffer = null;
+    }
+    while (!outbound.isEmpty()) {
+      bufferPool.release(outbound.pollFirst());
+    }
+    pendingBytes = 0;
+    clientChannel.close();
+  }
 }
@@ -1,30 +1,125 @@
 package tomcat.minitomcat.server;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import tomcat.minitomcat.http.Router;
 
 
+/**
+ * Owns one {@link Selector} and is the only thread that touches its keys.
+ *
+ * <p>Other threads never call {@code register()} or {@code interestOps()} directly: acceptors and
+ * workers enqueue a {@link PollerEvent} and the poller drains the queue at the top of each select
+ * cycle. Wakeups are coalesced through {@code wakeupCounter}, which the poller sets to -1 while it
+ * is about to block; only the producer that moves it back to 0 calls {@code selector.wakeup()}, so
+ * a burst of accepts costs a single wakeup syscall.
+ *
+ * <p>Every connection waiting on the selector has exactly one pending timeout in the poller's
+ * {@link TimeoutWheel}, chosen from the interest ops it was armed with: read-idle while it waits for
+ * a request, request-header while a request head is trickling in, write-idle while responses wait
+ * for the client. The timeout is cancelled when a worker takes the connection and rescheduled when
+ * the worker re-arms it, so a connection owned by a worker is never timed out under it.
+ */
 public class NioPoller implements Runnable {
 
+  private static final long SELECT_TIMEOUT_MS = 1000;
+  private static final int TIMEOUT_WHEEL_SLOTS = 512;
+  private static final ByteBuffer SERVICE_UNAVAILABLE = ByteBuffer.wrap(
+      ("HTTP/1.1 503 Service Unavailable\r\nContent-Length: 0\r\nConnection: close\r\n\r\n")
+          .getBytes(StandardCharsets.ISO_8859_1)).asReadOnlyBuffer();
   private final Selector selector;
+  private final NioConfig config;
   private final ExecutorService workerPool;
+  private final BufferPool bufferPool;
+  private final Router router;
+  private final AccessLog accessLog;
+  private final ConnectorMetrics metrics;
+  private final AtomicInteger connectionCount = new AtomicInteger();
+  private final ConcurrentLinkedQueue<PollerEvent> events = new ConcurrentLinkedQueue<>();
+  private final AtomicLong wakeupCounter = new AtomicLong();
   private static final Logger logger = Logger.getLogger(NioPoller.class.getName());
 
-  public NioPoller(ExecutorService workerPool) throws IOException {
+  private final TimeoutWheel timeoutWheel =
+      new TimeoutWheel(SELECT_TIMEOUT_MS, TIMEOUT_WHEEL_SLOTS, System.currentTimeMillis());
+  private final TimeoutWheel.ExpiryHandler expiryHandler = this::timeoutExpired;
+
+  public NioPoller(NioConfig config, ExecutorService workerPool, BufferPool bufferPool,
+      Router router, AccessLog accessLog, ConnectorMetrics metrics) throws IOException {
     this.selector = Selector.open();
+    this.config = config;
     this.workerPool = workerPool;
+    this.bufferPool = bufferPool;
+    this.router = router;
+    this.accessLog = accessLog;
+    this.metrics = metrics;
   }
 
+  /**
+   * Hand a newly accepted channel to this poller; it is registered for {@code OP_READ} on the
+   * poller thread.
+   */
   public void registerChannel(SocketChannel clientChannel) throws IOException {
-    clientChannel.register(selector, SelectionKey.OP_READ, new NioConnection(clientChannel));
-    selector.wakeup();
-    logger.info("Registered channel: " + clientChannel.getRemoteAddress());
+    connectionCount.incrementAndGet();
+    NioConnection connection = new NioConnection(clientChannel, this, config);
+    addEvent(new PollerEvent(connection, SelectionKey.OP_READ, true));
+    if (logger.isLoggable(Level.FINE)) {
+      logger.fine("Queued channel registration: " + clientChannel.getRemoteAddress());
+    }
+  }
+
+  /**
+   * Re-arm a connection's interest ops, e.g. {@code OP_READ} once a worker is done with it.
+   */
+  public void rearm(NioConnection connection, int interestOps) {
+    addEvent(new PollerEvent(connection, interestOps, false));
+  }
+
+  private void addEvent(PollerEvent event) {
+    events.offer(event);
+    if (wakeupCounter.incrementAndGet() == 0) {
+      selector.wakeup();
+    }
+  }
+
+  /**
+   * Called by {@link NioConnection#close()} so the least-loaded balancing sees live counts.
+   */
+  void connectionClosed() {
+    connectionCount.decrementAndGet();
+  }
+
+  public int getConnectionCount() {
+    return connectionCount.get();
+  }
+
+  public BufferPool getBufferPool() {
+    return bufferPool;
+  }
+
+  /**
+   * The access log workers record served requests in, or {@code null} if it is disabled.
+   */
+  public AccessLog getAccessLog() {
+    return accessLog;
+  }
+
+  public ConnectorMetrics getMetrics() {
+    return metrics;
   }
 
   @Override
@@ -32,25 +127,161 @@ public class NioPoller implements Runnable {
     logger.info("NioPoller is running...");
     try {
       while (true) {
-        int readyChannels = selector.select(1000);
-        if (readyChannels == 0) {
-          continue; // No channels ready, continue polling
+        processEvents();
+        int readyChannels;
+        if (wakeupCounter.getAndSet(-1) > 0) {
+          // Events arrived since the drain: don't block, pick them up on the next cycle
+          readyChannels = selector.selectNow();
+        } else {
+          readyChannels = selector.select(SELECT_TIMEOUT_MS);
         }
-        Set<SelectionKey> selectionKeys = selector.selectedKeys();
-        Iterator<SelectionKey> iterator = selectionKeys.iterator();
-        while (iterator.hasNext()) {
-          SelectionKey key = iterator.next();
-          iterator.remove();
-
-          if (key.isValid() && key.isReadable()) {
-            // Clear interest ops immediately to prevent multiple notifications
-            key.interestOps(0);
-            workerPool.submit(new NioWorker(key));
-          }
+        wakeupCounter.set(0);
+        long cycleStart = System.nanoTime();
+        timeoutWheel.advance(System.currentTimeMillis(), expiryHandler);
+        if (readyChannels > 0) {
+          dispatchSelectedKeys();
         }
+        metrics.getPollerCycle().recordSince(cycleStart);
       }
     } catch (IOException e) {
       logger.warning("Error in NioPoller: " + e.getMessage());
     }
   }
+
+  /**
+   * Hand every ready connection to a worker.
+   */
+  private void dispatchSelectedKeys() {
+    Set<SelectionKey> selectionKeys = selector.selectedKeys();
+    Iterator<SelectionKey> iterator = selectionKeys.iterator();
+    while (iterator.hasNext()) {
+      SelectionKey key = iterator.next();
+      iterator.remove();
+
+      if (key.isValid() && (key.isReadable() || key.isWritable())) {
+        int readyOps = key.readyOps();
+        // Clear interest ops immediately to prevent multiple notifications
+        key.interestOps(0);
+        timeoutWheel.cancel(((NioConnection) key.attachment()).getTimeout());
+        try {
+          workerPool.execute(new NioWorker(key, config, readyOps, router));
+        } catch (RejectedExecutionException e) {
+          metrics.getRejected().increment();
+          rejectConnection((NioConnection) key.attachment());
+        }
+      }
+    }
+  }
+
+  /**
+   * Drain the event queue on the poller thread.
+   */
+  private void processEvents() {
+    PollerEvent event;
+    while ((event = events.poll()) != null) {
+      NioConnection connection = event.connection;
+      if (event.register) {
+        try {
+          SelectionKey key = connection.getClientChannel()
+              .register(selector, event.interestOps, connection);
+          connection.setSelectionKey(key);
+          scheduleTimeout(connection, event.interestOps);
+        } catch (ClosedChannelException e) {
+          closeQuietly(connection);
+        }
+        continue;
+      }
+      SelectionKey key = connection.getSelectionKey();
+      if (key == null || !key.isValid()) {
+        closeQuietly(connection);
+        continue;
+      }
+      try {
+        key.interestOps(event.interestOps);
+        scheduleTimeout(connection, event.interestOps);
+      } catch (CancelledKeyException e) {
+        closeQuietly(connection);
+      }
+    }
+  }
+
+  /**
+   * Give a connection just armed with {@code interestOps} the timeout matching what it waits for.
+   */
+  private void scheduleTimeout(NioConnection connection, int interestOps) {
+    TimeoutWheel.Timeout timeout = connection.getTimeout();
+    long now = System.currentTimeMillis();
+    if ((interestOps & SelectionKey.OP_WRITE) != 0) {
+      timeoutWheel.schedule(timeout, TimeoutWheel.Kind.WRITE_IDLE, now + config.getWriteTimeoutMs());
+    } else if ((interestOps & SelectionKey.OP_READ) == 0) {
+      timeoutWheel.cancel(timeout);
+    } else if (connection.getRequestHeadStart() > 0) {
+      // Measured from the first byte, so trickling a byte at a time does not extend it
+      timeoutWheel.schedule(timeout, TimeoutWheel.Kind.REQUEST_HEADER,
+          connection.getRequestHeadStart() + config.getRequestHeaderTimeoutMs());
+    } else {
+      timeoutWheel.schedule(timeout, TimeoutWheel.Kind.READ_IDLE,
+          now + config.getKeepAliveTimeoutMs());
+    }
+  }
+
+  private void timeoutExpired(TimeoutWheel.Timeout timeout) {
+    NioConnection connection = timeout.getConnection();
+    metrics.getTimeouts(timeout.getKind()).increment();
+    if (logger.isLoggable(Level.FINE)) {
+      try {
+        logger.fine("Closing connection after " + timeout.getKind() + " timeout: "
+            + connection.getClientChannel().getRemoteAddress());
+      } catch (IOException e) {
+        // Address unavailable: the connection is closed either way
+      }
+    }
+    closeQuietly(connection);
+  }
+
+  /**
+   * Shed load when the worker executor is saturated: make one non-blocking attempt to send a 503
+   * and close the connection, without ever blocking the poller thread.
+   */
+  private void rejectConnection(NioConnection connection) {
+    try {
+      logger.warning("Worker pool saturated, rejecting "
+          + connection.getClientChannel().getRemoteAddress());
+      // A half-written response must not be followed by a 503
+      if (!connection.hasPendingWrites()) {
+        connection.getClientChannel().write(SERVICE_UNAVAILABLE.duplicate());
+      }
+    } catch (IOException e) {
+      // Best effort only: the connection is closed either way
+    }
+    closeQuietly(connection);
+  }
+
+  /**
+   * Close a connection from the poller thread. Workers close connections they own directly; those
+   * have no pending timeout, since it was cancelled when the worker was dispatched.
+   */
+  private void closeQuietly(NioConnection connection) {
+    timeoutWheel.cancel(connection.getTimeout());
+    try {
+      connection.close();
+    } catch (IOException e) {
+      logger.warning("Error closing client channel: " + e.getMessage());
+    }
+  }
+
+  /**
+   * A registration or interest-ops change queued by another thread.
+   */
+  private static final class PollerEvent {
+    private final NioConnection connection;
+    private final int interestOps;
+    private final boolean register;
+
+    private PollerEvent(NioConnection connection, int interestOps, boolean register) {
+      this.connection = connection;
+      this.interestOps = interestOps;
+      this.register = register;
+    }
+  }
 }
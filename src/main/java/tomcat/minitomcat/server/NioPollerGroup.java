@@ -0,0 +1,82 @@
+package tomcat.minitomcat.server;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import tomcat.minitomcat.http.Router;
+
+
+/**
+ * A fixed set of {@link NioPoller}s, each running its own {@code Selector} on its own thread, so
+ * readiness events are spread over several cores instead of funneling through one selector loop.
+ */
+public class NioPollerGroup {
+
+  /**
+   * How the acceptors pick the poller for a new connection.
+   */
+  public enum Balance {
+    ROUND_ROBIN,
+    LEAST_LOADED
+  }
+
+  private final NioPoller[] pollers;
+  private final Balance balance;
+  private final AtomicInteger next = new AtomicInteger();
+
+  public NioPollerGroup(NioConfig config, ExecutorService workerPool, BufferPool bufferPool,
+      Router router, AccessLog accessLog, ConnectorMetrics metrics) throws IOException {
+    int size = config.getPollers();
+    if (size < 1) {
+      throw new IllegalArgumentException("Poller count must be positive: " + size);
+    }
+    this.pollers = new NioPoller[size];
+    for (int i = 0; i < size; i++) {
+      pollers[i] = new NioPoller(config, workerPool, bufferPool, router, accessLog, metrics);
+    }
+    this.balance = config.getPollerBalance();
+  }
+
+  public void start() {
+    for (int i = 0; i < pollers.length; i++) {
+      new Thread(pollers[i], "NioPoller-" + i).start();
+    }
+  }
+
+  public int size() {
+    return pollers.length;
+  }
+
+  /**
+   * Open connections across all pollers.
+   */
+  public int getConnectionCount() {
+    int count = 0;
+    for (NioPoller poller : pollers) {
+      count += poller.getConnectionCount();
+    }
+    return count;
+  }
+
+  /**
+   * Choose the poller that will own a newly accepted channel. Safe to call from several acceptors.
+   */
+  public NioPoller next() {
+    if (pollers.length == 1) {
+      return pollers[0];
+    }
+    if (balance == Balance.LEAST_LOADED) {
+      NioPoller best = pollers[0];
+      int bestCount = best.getConnectionCount();
+      for (int i = 1; i < pollers.length; i++) {
+        int count = pollers[i].getConnectionCount();
+        if (count < bestCount) {
+          best = pollers[i];
+          bestCount = count;
+        }
+      }
+      return best;
+    }
+    return pollers[Math.floorMod(next.getAndIncrement(), pollers.length)];
+  }
+}
@@ -1,26 +1,84 @@
 package tomcat.minitomcat.server;
 
+import common.metrics.MetricsRegistry;
 import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.logging.Logger;
+import tomcat.minitomcat.http.Router;
 
 
 public class NioServer {
   private static final Logger logger = Logger.getLogger(NioServer.class.getName());
-  private static final int PORT = 8090;
-  private static final int MAX_WORKERS = 10;
+
+  /**
+   * The endpoints served by this server. Unmatched paths still get "Hello, World!".
+   */
+  static Router createRouter(MetricsRegistry metrics) {
+    return new Router()
+        .get("/metrics", (request, response) ->
+            response.setContentType(MetricsRegistry.CONTENT_TYPE).setBody(metrics.scrape()))
+        .get("/hello/{name}", (request, response) ->
+            response.setBody("Hello, " + request.getPathParam("name") + "!"))
+        .add(Router.ANY_METHOD, "/*", (request, response) -> response.setBody("Hello, World!"));
+  }
 
   public static void main(String[] args) throws IOException {
     logger.info("Starting NIO server...");
+    NioConfig config = NioConfig.fromSystemProperties();
+
+    ExecutorService workerPool = WorkerExecutors.create(
+        config.getExecutorType(), config.getMaxWorkers(), config.getWorkerQueueSize());
+
+    // Thread-local buffer caches don't pay off when every task runs on a fresh virtual thread
+    boolean threadLocalCache = !WorkerExecutors.isVirtual(config.getExecutorType());
+    BufferPool bufferPool = new BufferPool(
+        config.getBufferPoolArenaBytes(), config.isBufferPoolDebug(), threadLocalCache);
+    if (config.isBufferPoolDebug()) {
+      Runtime.getRuntime().addShutdownHook(new Thread(bufferPool::reportLeaks, "BufferLeakReport"));
+    }
+
+    AccessLog accessLog = null;
+    if (config.getAccessLogPath() != null) {
+      accessLog = new AccessLog(Paths.get(config.getAccessLogPath()), config.getAccessLogRingSize());
+      accessLog.start();
+      Runtime.getRuntime().addShutdownHook(new Thread(accessLog::close, "AccessLogClose"));
+    }
 
-    ExecutorService workerPool = Executors.newFixedThreadPool(MAX_WORKERS);
+    MetricsRegistry registry = new MetricsRegistry();
+    ConnectorMetrics metrics = new ConnectorMetrics(registry);
+    NioPollerGroup pollers = new NioPollerGroup(
+        config, workerPool, bufferPool, createRouter(registry), accessLog, metrics);
+    registry.gauge("minitomcat_connections_open", "Connections currently open",
+        pollers::getConnectionCount);
+    registry.gauge("minitomcat_worker_queue_depth",
+        "Dispatched connections waiting for a worker; -1 if the executor cannot tell",
+        () -> WorkerExecutors.queuedTasks(workerPool));
+    if (accessLog != null) {
+      registry.gauge("minitomcat_access_log_dropped", "Access log entries dropped",
+          accessLog::getDroppedCount);
+    }
+    pollers.start();
 
-    NioPoller poller = new NioPoller(workerPool);
-    new Thread(poller, "NioPoller").start();
-    new Thread(new NioAcceptor(PORT, poller), "NioAcceptor").start();
+    boolean reusePort = config.isReusePort() && NioAcceptor.isReusePortSupported();
+    if (config.isReusePort() && !reusePort) {
+      logger.warning("SO_REUSEPORT is not supported on this platform, using a single acceptor");
+    }
+    int acceptorCount = reusePort ? Math.max(1, config.getAcceptors()) : 1;
+    List<NioAcceptor> acceptors = new ArrayList<>(acceptorCount);
+    for (int i = 0; i < acceptorCount; i++) {
+      NioAcceptor acceptor = new NioAcceptor(config.getPort(), pollers, reusePort);
+      acceptors.add(acceptor);
+      new Thread(acceptor, "NioAcceptor-" + i).start();
+    }
+    // Close the listening sockets first, so no connection is accepted while the JVM winds down
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> acceptors.forEach(NioAcceptor::stop),
+        "NioAcceptorStop"));
 
-    // This is a placeholder for the actual server logic
-    logger.info("NIO server started on port " + PORT);
+    logger.info("NIO server started on port " + config.getPort() + " with " + acceptorCount
+        + " acceptor(s), " + pollers.size() + " poller(s) and a " + config.getExecutorType()
+        + " worker executor");
   }
 }
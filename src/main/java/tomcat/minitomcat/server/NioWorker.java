@@ -3,57 +3,178 @@ package tomcat.minitomcat.server;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.SocketChannel;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import tomcat.minitomcat.http.HttpParseException;
+import tomcat.minitomcat.http.HttpRequest;
+import tomcat.minitomcat.http.HttpRequestParser;
+import tomcat.minitomcat.http.HttpResponse;
+import tomcat.minitomcat.http.Router;
 
 
 public class NioWorker implements Runnable {
   private static final Logger logger = Logger.getLogger(NioWorker.class.getName());
   private final SelectionKey key;
+  private final NioConfig config;
+  private final int readyOps;
+  private final Router router;
+  private final long dispatchNanos = System.nanoTime();
 
-  public NioWorker(SelectionKey key) {
+  public NioWorker(SelectionKey key, NioConfig config, int readyOps, Router router) {
     this.key = key;
+    this.config = config;
+    this.readyOps = readyOps;
+    this.router = router;
   }
 
   @Override
   public void run() {
+    NioConnection nioConnection = (NioConnection) key.attachment();
+    ConnectorMetrics metrics = nioConnection.getPoller().getMetrics();
+    metrics.getQueueWait().recordSince(dispatchNanos);
     try {
-      NioConnection nioConnection = (NioConnection) key.attachment();
-      SocketChannel clientChannel = nioConnection.getClientChannel();
-      ByteBuffer readBuffer = ByteBuffer.allocate(1024);
-      int bytesRead = clientChannel.read(readBuffer);
+      // Resume a response the socket could not take last time before doing anything else
+      if (nioConnection.hasPendingWrites()) {
+        nioConnection.flush();
+      }
 
-      if (bytesRead == -1) {
-        onClientDisconnected(clientChannel);
-        return;
-      } else if (bytesRead == 0) {
-        return; // No data to read, return
+      try {
+        if ((readyOps & SelectionKey.OP_READ) != 0 && !nioConnection.isWritePaused()
+            && !nioConnection.isCloseAfterFlush()) {
+          int bytesRead = nioConnection.getClientChannel().read(nioConnection.prepareReadBuffer());
+          if (bytesRead == -1) {
+            onClientDisconnected(nioConnection);
+            return;
+          }
+        }
+        // A flush that drains the queue to the low watermark lifts the pause; requests still buffered
+        // are served then, since a client waiting for their responses sends nothing to wake us again
+        while (processRequests(nioConnection)) {
+          flush(nioConnection);
+          if (nioConnection.isWritePaused()) {
+            break;
+          }
+        }
+      } catch (HttpParseException e) {
+        logger.warning("Bad request: " + e.getMessage());
+        sendError(nioConnection, e.getStatus());
       }
 
-      readBuffer.flip();
-      String request = new String(readBuffer.array(), 0, bytesRead);
-      logger.info("Received request: " + request);
-      String httpResponse = "HTTP/1.1 200 OK\r\nContent-Length: 13\r\n\r\nHello, World!";
-      ByteBuffer writeBuffer = ByteBuffer.wrap(httpResponse.getBytes());
-      while (writeBuffer.hasRemaining()) {
-        clientChannel.write(writeBuffer);
+      flush(nioConnection);
+      if (nioConnection.isCloseAfterFlush() && !nioConnection.hasPendingWrites()) {
+        onClientDisconnected(nioConnection);
+        return;
       }
-      logger.info("Sent response to client: " + clientChannel.getRemoteAddress());
 
-      onClientDisconnected(clientChannel);
+      int interestOps = 0;
+      if (nioConnection.hasPendingWrites()) {
+        interestOps |= SelectionKey.OP_WRITE;
+      }
+      if (!nioConnection.isWritePaused() && !nioConnection.isCloseAfterFlush()) {
+        interestOps |= SelectionKey.OP_READ;
+        nioConnection.trackRequestHead();
+        nioConnection.releaseReadBufferIfIdle();
+      }
+      nioConnection.getPoller().rearm(nioConnection, interestOps);
     } catch (IOException e) {
       logger.warning("Error in NioWorker: " + e.getMessage());
-      onClientDisconnected((SocketChannel) key.channel());
+      onClientDisconnected(nioConnection);
+    }
+  }
+
+  private void flush(NioConnection nioConnection) throws IOException {
+    if (nioConnection.hasPendingWrites()) {
+      long writeStart = System.nanoTime();
+      nioConnection.flush();
+      nioConnection.getPoller().getMetrics().getWrite().recordSince(writeStart);
+    }
+  }
+
+  /**
+   * Serve every complete request buffered on the connection. A single read may hold several
+   * pipelined requests, or only part of one. Stops early while the client is not draining its
+   * responses, leaving the remaining requests buffered until the outbound queue shrinks.
+   *
+   * @return whether it stopped because writes were paused, with requests possibly still buffered
+   */
+  private boolean processRequests(NioConnection nioConnection) throws HttpParseException {
+    if (nioConnection.getReadBuffer() == null) {
+      return false;
+    }
+    HttpRequestParser parser = nioConnection.getParser();
+    ConnectorMetrics metrics = nioConnection.getPoller().getMetrics();
+    while (!nioConnection.isWritePaused() && !nioConnection.isCloseAfterFlush()) {
+      long parseStart = System.nanoTime();
+      if (parser.parse(nioConnection.getReadBuffer()) != HttpRequestParser.Result.COMPLETE) {
+        return false;
+      }
+      metrics.getParse().recordSince(parseStart);
+      if (!service(nioConnection, parser.getRequest())) {
+        nioConnection.setCloseAfterFlush();
+      }
+      parser.recycle();
     }
+    return nioConnection.isWritePaused();
+  }
+
+  /**
+   * Answer one complete request by running its route's handler and queueing the response on the
+   * connection.
+   *
+   * @return whether the connection stays open for the next request
+   */
+  private boolean service(NioConnection nioConnection, HttpRequest request) {
+    long start = System.nanoTime();
+    HttpResponse response = new HttpResponse();
+    try {
+      router.route(request).handle(request, response);
+    } catch (Exception e) {
+      logger.log(Level.WARNING, "Handler failed for " + request.getUri(), e);
+      response = new HttpResponse().setStatus(500).setBody("Internal Server Error");
+    }
+    ConnectorMetrics metrics = nioConnection.getPoller().getMetrics();
+    metrics.getHandle().recordSince(start);
+    metrics.getRequests().increment();
+
+    int requestCount = nioConnection.incrementRequestCount();
+    boolean keepAlive = request.isKeepAlive() && requestCount < config.getMaxKeepAliveRequests();
+    boolean includeBody = !request.getMethod().equals("HEAD");
+    enqueue(nioConnection, response, keepAlive, includeBody);
+
+    AccessLog accessLog = nioConnection.getPoller().getAccessLog();
+    if (accessLog != null) {
+      accessLog.record(nioConnection.getRemoteAddress(), request.getMethod(), request.getUri(),
+          request.isHttp11() ? "HTTP/1.1" : "HTTP/1.0", response.getStatus(),
+          includeBody ? response.getBody().length : 0, System.nanoTime() - start);
+    }
+    return keepAlive;
+  }
+
+  private void sendError(NioConnection nioConnection, int status) {
+    HttpResponse response = new HttpResponse().setStatus(status);
+    enqueue(nioConnection, response, false, true);
+    nioConnection.setCloseAfterFlush();
+  }
+
+  private static void enqueue(NioConnection nioConnection, HttpResponse response,
+      boolean keepAlive, boolean includeBody) {
+    String head = response.encodeHead(keepAlive);
+    int length = head.length() + (includeBody ? response.getBody().length : 0);
+    ByteBuffer writeBuffer = nioConnection.getPoller().getBufferPool().lease(length);
+    response.encode(writeBuffer, head, includeBody);
+    writeBuffer.flip();
+    nioConnection.enqueue(writeBuffer);
   }
 
   /**
    * Handle client disconnection.
    */
-  protected void onClientDisconnected(SocketChannel clientChannel) {
+  protected void onClientDisconnected(NioConnection nioConnection) {
     try {
-      logger.info("Client disconnected: " + clientChannel.getRemoteAddress());
-      clientChannel.close();
+      if (logger.isLoggable(Level.FINE)) {
+        logger.fine("Client disconnected: " + nioConnection.getRemoteAddress());
+      }
+      nioConnection.close();
     } catch (IOException e) {
       logger.warning("Error closing client channel: " + e.getMessage());
     }
@@ -0,0 +1,132 @@
+package tomcat.minitomcat.server;
+
+
+/**
+ * Hashed timing wheel for connection timeouts, owned and advanced by a single {@link NioPoller}.
+ *
+ * <p>Each slot holds a doubly-linked list of {@link Timeout}s, so scheduling and cancelling are O(1)
+ * and allocate nothing: every connection carries one reusable {@code Timeout}. Deadlines further out
+ * than one turn of the wheel wait out the extra turns in {@code rounds}. The wheel is only as precise
+ * as its tick; {@link #advance} expires everything whose tick has passed. Not thread-safe: only the
+ * poller thread may touch it.
+ */
+final class TimeoutWheel {
+
+  enum Kind {
+    /** Waiting for the first byte of the next request on an idle connection. */
+    READ_IDLE,
+    /** A request's line and headers have started arriving but are not complete. */
+    REQUEST_HEADER,
+    /** Responses are queued but the client has not accepted any bytes. */
+    WRITE_IDLE
+  }
+
+  /**
+   * Called for each expired timeout, after it has been unlinked from the wheel.
+   */
+  interface ExpiryHandler {
+    void expired(Timeout timeout);
+  }
+
+  private final long tickMs;
+  private final Timeout[] slots;
+  private final int mask;
+  private long currentTick;
+
+  TimeoutWheel(long tickMs, int slotCount, long nowMs) {
+    if (Integer.bitCount(slotCount) != 1) {
+      throw new IllegalArgumentException("Slot count must be a power of two: " + slotCount);
+    }
+    this.tickMs = tickMs;
+    this.slots = new Timeout[slotCount];
+    this.mask = slotCount - 1;
+    this.currentTick = nowMs / tickMs;
+  }
+
+  /**
+   * (Re)schedule {@code timeout} to expire at {@code deadlineMs}, replacing any pending deadline.
+   */
+  void schedule(Timeout timeout, Kind kind, long deadlineMs) {
+    cancel(timeout);
+    // Round up so a timeout never fires early; always at least one tick ahead of the cursor
+    long deadlineTick = Math.max(currentTick + 1, (deadlineMs + tickMs - 1) / tickMs);
+    long ticks = deadlineTick - currentTick;
+    int slot = (int) (deadlineTick & mask);
+    timeout.kind = kind;
+    timeout.deadlineMs = deadlineMs;
+    timeout.rounds = (ticks - 1) / slots.length;
+    timeout.slot = slot;
+    timeout.next = slots[slot];
+    if (timeout.next != null) {
+      timeout.next.prev = timeout;
+    }
+    slots[slot] = timeout;
+  }
+
+  void cancel(Timeout timeout) {
+    if (timeout.slot < 0) {
+      return;
+    }
+    if (timeout.prev != null) {
+      timeout.prev.next = timeout.next;
+    } else {
+      slots[timeout.slot] = timeout.next;
+    }
+    if (timeout.next != null) {
+      timeout.next.prev = timeout.prev;
+    }
+    timeout.prev = null;
+    timeout.next = null;
+    timeout.slot = -1;
+  }
+
+  /**
+   * Move the cursor up to {@code nowMs}, expiring every timeout in the slots passed over.
+   */
+  void advance(long nowMs, ExpiryHandler handler) {
+    long nowTick = nowMs / tickMs;
+    while (currentTick < nowTick) {
+      currentTick++;
+      Timeout timeout = slots[(int) (currentTick & mask)];
+      while (timeout != null) {
+        Timeout next = timeout.next;
+        if (timeout.rounds > 0) {
+          timeout.rounds--;
+        } else {
+          cancel(timeout);
+          handler.expired(timeout);
+        }
+        timeout = next;
+      }
+    }
+  }
+
+  /**
+   * A connection's slot in the wheel; allocated once per connection and reused.
+   */
+  static final class Timeout {
+    private final NioConnection connection;
+    private Timeout prev;
+    private Timeout next;
+    private int slot = -1;
+    private long rounds;
+    private long deadlineMs;
+    private Kind kind;
+
+    Timeout(NioConnection connection) {
+      this.connection = connection;
+    }
+
+    NioConnection getConnection() {
+      return connection;
+    }
+
+    Kind getKind() {
+      return kind;
+    }
+
+    boolean isScheduled() {
+      return slot >= 0;
+    }
+  }
+}
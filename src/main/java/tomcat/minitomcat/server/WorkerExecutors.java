@@ -0,0 +1,111 @@
+package tomcat.minitomcat.server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+
+/**
+ * Builds the executor that runs {@link NioWorker}s.
+ *
+ * <p>When a {@link Type#BOUNDED} executor is saturated it throws
+ * {@link java.util.concurrent.RejectedExecutionException}; the poller answers such connections with
+ * {@code 503 Service Unavailable} instead of queueing them without limit.
+ */
+public final class WorkerExecutors {
+  private static final Logger logger = Logger.getLogger(WorkerExecutors.class.getName());
+
+  public enum Type {
+    /** {@code maxWorkers} threads with an unbounded queue; the original behavior. */
+    FIXED,
+    /** {@code maxWorkers} threads with a bounded queue; overflow is rejected with a 503. */
+    BOUNDED,
+    /** Work-stealing {@link java.util.concurrent.ForkJoinPool} with {@code maxWorkers} parallelism. */
+    FORK_JOIN,
+    /** One virtual thread per task; requires Java 21, falls back to {@link #FIXED} otherwise. */
+    VIRTUAL
+  }
+
+  private WorkerExecutors() {
+  }
+
+  public static ExecutorService create(Type type, int maxWorkers, int queueSize) {
+    switch (type) {
+      case FIXED:
+        return Executors.newFixedThreadPool(maxWorkers, namedThreads("NioWorker"));
+      case BOUNDED:
+        return new ThreadPoolExecutor(maxWorkers, maxWorkers, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(queueSize), namedThreads("NioWorker"),
+            new ThreadPoolExecutor.AbortPolicy());
+      case FORK_JOIN:
+        return Executors.newWorkStealingPool(maxWorkers);
+      case VIRTUAL:
+        ExecutorService virtual = newVirtualThreadPerTaskExecutor();
+        if (virtual != null) {
+          return virtual;
+        }
+        logger.warning("Virtual threads need Java 21+, running on " + Runtime.version()
+            + "; using a FIXED pool instead");
+        return create(Type.FIXED, maxWorkers, queueSize);
+      default:
+        throw new IllegalArgumentException("Unknown executor type: " + type);
+    }
+  }
+
+  /**
+   * Tasks waiting for a worker, or -1 if {@code executor} cannot tell (virtual threads never wait).
+   */
+  public static long queuedTasks(ExecutorService executor) {
+    if (executor instanceof ThreadPoolExecutor) {
+      return ((ThreadPoolExecutor) executor).getQueue().size();
+    }
+    if (executor instanceof ForkJoinPool) {
+      ForkJoinPool pool = (ForkJoinPool) executor;
+      return pool.getQueuedSubmissionCount() + pool.getQueuedTaskCount();
+    }
+    return -1;
+  }
+
+  /**
+   * Whether {@code type} will really run on virtual threads in this JVM.
+   */
+  public static boolean isVirtual(Type type) {
+    return type == Type.VIRTUAL && virtualThreadFactoryMethod() != null;
+  }
+
+  /**
+   * Looked up reflectively so the project still compiles and runs on Java 17.
+   */
+  private static ExecutorService newVirtualThreadPerTaskExecutor() {
+    Method factory = virtualThreadFactoryMethod();
+    if (factory == null) {
+      return null;
+    }
+    try {
+      return (ExecutorService) factory.invoke(null);
+    } catch (ReflectiveOperationException e) {
+      logger.warning("Cannot create virtual thread executor: " + e);
+      return null;
+    }
+  }
+
+  private static Method virtualThreadFactoryMethod() {
+    try {
+      return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
+
+  private static ThreadFactory namedThreads(String prefix) {
+    AtomicInteger counter = new AtomicInteger();
+    return runnable -> new Thread(runnable, prefix + "-" + counter.getAndIncrement());
+  }
+}